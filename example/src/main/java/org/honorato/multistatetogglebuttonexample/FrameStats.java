@@ -0,0 +1,106 @@
+package org.honorato.multistatetogglebuttonexample;
+
+import android.os.Build;
+import android.os.Debug;
+import android.view.Choreographer;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Records the time between frames while running, to summarize how smooth a scenario was
+ */
+class FrameStats implements Choreographer.FrameCallback {
+
+    /**
+     * A minute at 60fps
+     */
+    private static final int MAX_FRAMES = 3600;
+
+    private final long frameIntervalNanos;
+    private final long[] frameNanos = new long[MAX_FRAMES];
+    private int frameCount;
+    private long lastFrameTime;
+    private boolean running;
+    private long gcCountStart;
+    private long gcCount;
+
+    /**
+     * @param refreshRate the display's refresh rate, frames taking longer than one refresh are janky
+     */
+    FrameStats(float refreshRate) {
+        this.frameIntervalNanos = (long) (1e9 / refreshRate);
+    }
+
+    void start() {
+        frameCount = 0;
+        lastFrameTime = 0;
+        running = true;
+        gcCountStart = readGcCount();
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    void stop() {
+        running = false;
+        Choreographer.getInstance().removeFrameCallback(this);
+        gcCount = gcCountStart >= 0 ? readGcCount() - gcCountStart : -1;
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (!running) {
+            return;
+        }
+        if (lastFrameTime != 0 && frameCount < MAX_FRAMES) {
+            frameNanos[frameCount++] = frameTimeNanos - lastFrameTime;
+        }
+        lastFrameTime = frameTimeNanos;
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    /**
+     * @return A one line summary of the frames recorded by the last run
+     */
+    String summarize(String scenario) {
+        long[] sorted = Arrays.copyOf(frameNanos, frameCount);
+        Arrays.sort(sorted);
+        // Half a refresh of slack, so that vsync jitter doesn't count as jank
+        final long jankThreshold = frameIntervalNanos + frameIntervalNanos / 2;
+        int jankCount = 0;
+        for (long nanos : sorted) {
+            if (nanos > jankThreshold) {
+                jankCount++;
+            }
+        }
+        return String.format(Locale.US,
+                "%s frames=%d jank=%.2f%% p50=%.2fms p95=%.2fms p99=%.2fms gc=%s",
+                scenario, frameCount,
+                frameCount > 0 ? 100f * jankCount / frameCount : 0f,
+                percentile(sorted, 50) / 1e6,
+                percentile(sorted, 95) / 1e6,
+                percentile(sorted, 99) / 1e6,
+                gcCount >= 0 ? String.valueOf(gcCount) : "n/a");
+    }
+
+    private static long percentile(long[] sorted, int percent) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.min(sorted.length - 1, sorted.length * percent / 100)];
+    }
+
+    /**
+     * @return The number of garbage collections since the process started, or -1 if unknown
+     */
+    private static long readGcCount() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return -1;
+        }
+        String count = Debug.getRuntimeStat("art.gc.gc-count");
+        try {
+            return count != null ? Long.parseLong(count) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
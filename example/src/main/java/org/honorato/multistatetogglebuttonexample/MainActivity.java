@@ -1,5 +1,6 @@
 package org.honorato.multistatetogglebuttonexample;
 
+import android.content.Intent;
 import android.os.Bundle;
 import android.support.v7.app.AppCompatActivity;
 import android.view.Menu;
@@ -35,6 +36,10 @@ public class MainActivity extends AppCompatActivity {
         if (id == R.id.action_settings) {
             return true;
         }
+        if (id == R.id.action_stress) {
+            startActivity(new Intent(this, StressActivity.class));
+            return true;
+        }
 
         return super.onOptionsItemSelected(item);
     }
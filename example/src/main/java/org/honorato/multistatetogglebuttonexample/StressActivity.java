@@ -0,0 +1,330 @@
+package org.honorato.multistatetogglebuttonexample;
+
+import android.graphics.Color;
+import android.os.Bundle;
+import android.os.Handler;
+import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.util.Log;
+import android.view.LayoutInflater;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.view.ViewConfiguration;
+import android.view.ViewGroup;
+import android.widget.Toast;
+
+import org.honorato.multistatetogglebutton.MultiStateToggleButton;
+import org.honorato.multistatetogglebutton.SegmentViewPool;
+import org.honorato.multistatetogglebutton.ToggleButton;
+import org.honorato.multistatetogglebutton.ToggleMetrics;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Shows 10,000 toggles in a list and measures the frames of automated scenarios, so that
+ * library changes can be compared on the same workload. Results are appended to
+ * stress-results.txt in the app's external files directory.
+ *
+ * Scenarios can also be started from the command line:
+ * <pre>
+ * adb shell am start -n org.honorato.multistatetogglebuttonexample/.StressActivity -e scenario all
+ * </pre>
+ */
+public class StressActivity extends AppCompatActivity {
+
+    private static final String TAG = "StressActivity";
+
+    public static final String EXTRA_SCENARIO = "scenario";
+    public static final String SCENARIO_FLING = "fling";
+    public static final String SCENARIO_REBIND = "rebind";
+    public static final String SCENARIO_ALL = "all";
+
+    private static final int ROW_COUNT = 10000;
+    private static final long SCENARIO_DURATION_MS = 10000;
+    private static final long FLING_INTERVAL_MS = 1000;
+
+    private static final CharSequence[] LABELS = new CharSequence[]{"One", "Two", "Three", "Four", "Five", "Six"};
+
+    private final Handler handler = new Handler();
+    private RecyclerView list;
+    private RowAdapter adapter;
+    private FrameStats frameStats;
+    private String runningScenario;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_stress);
+
+        SegmentViewPool pool = new SegmentViewPool(this);
+        pool.prewarmWhenIdle(4, 12);
+        adapter = new RowAdapter(pool);
+        list = (RecyclerView) findViewById(R.id.stress_list);
+        list.setLayoutManager(new LinearLayoutManager(this));
+        list.setAdapter(adapter);
+        frameStats = new FrameStats(getWindowManager().getDefaultDisplay().getRefreshRate());
+
+        if (savedInstanceState == null && getIntent().hasExtra(EXTRA_SCENARIO)) {
+            final String scenario = getIntent().getStringExtra(EXTRA_SCENARIO);
+            // Lets the first frames settle before measuring
+            handler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    runScenario(scenario);
+                }
+            }, FLING_INTERVAL_MS);
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        handler.removeCallbacksAndMessages(null);
+        if (runningScenario != null) {
+            list.stopScroll();
+            frameStats.stop();
+            ToggleMetrics.install(null);
+        }
+        super.onDestroy();
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.menu_stress, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        int id = item.getItemId();
+        if (id == R.id.action_fling) {
+            runScenario(SCENARIO_FLING);
+            return true;
+        } else if (id == R.id.action_rebind) {
+            runScenario(SCENARIO_REBIND);
+            return true;
+        } else if (id == R.id.action_all) {
+            runScenario(SCENARIO_ALL);
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    private void runScenario(String scenario) {
+        if (runningScenario != null) {
+            return;
+        }
+        if (SCENARIO_ALL.equals(scenario)) {
+            runScenario(SCENARIO_FLING, SCENARIO_REBIND);
+        } else if (SCENARIO_FLING.equals(scenario) || SCENARIO_REBIND.equals(scenario)) {
+            runScenario(scenario, null);
+        } else {
+            Log.w(TAG, "Unknown scenario " + scenario);
+        }
+    }
+
+    /**
+     * Runs a scenario from the top of the list, then the next one if any
+     */
+    private void runScenario(final String scenario, final String next) {
+        runningScenario = scenario;
+        list.scrollToPosition(0);
+
+        final ToggleMetrics metrics = new ToggleMetrics();
+        ToggleMetrics.install(metrics);
+        frameStats.start();
+        final Runnable step = SCENARIO_FLING.equals(scenario) ? new FlingStep() : new RebindStep();
+        handler.post(step);
+        handler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                handler.removeCallbacks(step);
+                list.removeCallbacks(step);
+                list.stopScroll();
+                frameStats.stop();
+                ToggleMetrics.install(null);
+                runningScenario = null;
+                report(frameStats.summarize(scenario), metrics);
+                if (next != null) {
+                    runScenario(next, null);
+                }
+            }
+        }, SCENARIO_DURATION_MS);
+    }
+
+    private void report(String summary, ToggleMetrics metrics) {
+        Log.i(TAG, summary);
+        Log.i(TAG, metrics.toString());
+        File directory = getExternalFilesDir(null);
+        File file = new File(directory != null ? directory : getFilesDir(), "stress-results.txt");
+        String date = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US).format(new Date());
+        FileWriter writer = null;
+        try {
+            writer = new FileWriter(file, true);
+            writer.write(date + " " + android.os.Build.MODEL + " " + summary + "\n");
+            writer.write(date + " " + metrics + "\n");
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't write " + file, e);
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        Toast.makeText(this, summary, Toast.LENGTH_LONG).show();
+    }
+
+    /**
+     * Flings down as fast as possible, and back up near the end of the list
+     */
+    private class FlingStep implements Runnable {
+
+        private final int velocity = ViewConfiguration.get(StressActivity.this).getScaledMaximumFlingVelocity();
+        private int direction = 1;
+
+        @Override
+        public void run() {
+            LinearLayoutManager layoutManager = (LinearLayoutManager) list.getLayoutManager();
+            int first = layoutManager.findFirstVisibleItemPosition();
+            if (direction > 0 && first > ROW_COUNT - ROW_COUNT / 10) {
+                direction = -1;
+            } else if (direction < 0 && first < ROW_COUNT / 10) {
+                direction = 1;
+            }
+            list.fling(0, direction * velocity);
+            handler.postDelayed(this, FLING_INTERVAL_MS);
+        }
+    }
+
+    /**
+     * Changes the rows in view on every frame, while scrolling slowly, so that every
+     * frame rebinds toggles to different elements, icons, colors and choice modes
+     */
+    private class RebindStep implements Runnable {
+
+        @Override
+        public void run() {
+            LinearLayoutManager layoutManager = (LinearLayoutManager) list.getLayoutManager();
+            int first = layoutManager.findFirstVisibleItemPosition();
+            int last = layoutManager.findLastVisibleItemPosition();
+            if (first != RecyclerView.NO_POSITION) {
+                adapter.shift(first, last - first + 1);
+            }
+            list.scrollBy(0, 4);
+            list.postOnAnimation(this);
+        }
+    }
+
+    private static class RowHolder extends RecyclerView.ViewHolder {
+
+        final MultiStateToggleButton toggle;
+
+        RowHolder(MultiStateToggleButton toggle) {
+            super(toggle);
+            this.toggle = toggle;
+        }
+    }
+
+    /**
+     * Each row's look depends on its position and a shift that rebinding changes
+     */
+    private static class RowAdapter extends RecyclerView.Adapter<RowHolder> {
+
+        private final SegmentViewPool pool;
+        private final int[] shifts = new int[ROW_COUNT];
+        private final long[] masks = new long[ROW_COUNT];
+        private final CharSequence[][] labels = new CharSequence[LABELS.length + 1][];
+        private final int[][] icons = new int[LABELS.length + 1][];
+        private final boolean[][] states = new boolean[LABELS.length + 1][];
+
+        RowAdapter(SegmentViewPool pool) {
+            this.pool = pool;
+            for (int count = 2; count <= LABELS.length; count++) {
+                labels[count] = new CharSequence[count];
+                System.arraycopy(LABELS, 0, labels[count], 0, count);
+                icons[count] = new int[count];
+                for (int i = 0; i < count; i++) {
+                    icons[count][i] = R.mipmap.ic_launcher;
+                }
+                states[count] = new boolean[count];
+            }
+            for (int i = 0; i < ROW_COUNT; i++) {
+                masks[i] = isMultipleChoice(i) ? i & ((1L << getCount(i)) - 1) : 1L << (i % getCount(i));
+            }
+        }
+
+        void shift(int position, int count) {
+            for (int i = position; i < position + count && i < ROW_COUNT; i++) {
+                shifts[i]++;
+                masks[i] = 1L << (shifts[i] % getCount(i));
+            }
+            notifyItemRangeChanged(position, count);
+        }
+
+        private int getCount(int position) {
+            return 2 + (position + shifts[position]) % (LABELS.length - 1);
+        }
+
+        private boolean isMultipleChoice(int position) {
+            return (position + shifts[position]) % 2 == 1;
+        }
+
+        private boolean hasIcons(int position) {
+            return (position + shifts[position]) % 3 == 0;
+        }
+
+        private boolean hasCustomColors(int position) {
+            return (position + shifts[position]) % 4 == 0;
+        }
+
+        @Override
+        public int getItemCount() {
+            return ROW_COUNT;
+        }
+
+        @Override
+        public RowHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+            MultiStateToggleButton toggle = (MultiStateToggleButton) LayoutInflater.from(parent.getContext())
+                    .inflate(R.layout.row_stress, parent, false);
+            toggle.setSegmentViewPool(pool);
+            final RowHolder holder = new RowHolder(toggle);
+            toggle.setOnValueChangedListener(new ToggleButton.OnValueChangedListener() {
+                @Override
+                public void onValueChanged(int value) {
+                    int position = holder.getAdapterPosition();
+                    if (position != RecyclerView.NO_POSITION) {
+                        masks[position] = holder.toggle.getSelectionMask();
+                    }
+                }
+            });
+            return holder;
+        }
+
+        @Override
+        public void onBindViewHolder(RowHolder holder, int position) {
+            final int count = getCount(position);
+            final boolean[] selected = states[count];
+            for (int i = 0; i < count; i++) {
+                selected[i] = (masks[position] & (1L << i)) != 0;
+            }
+
+            MultiStateToggleButton toggle = holder.toggle;
+            toggle.beginUpdate();
+            toggle.enableMultipleChoice(isMultipleChoice(position));
+            if (hasCustomColors(position)) {
+                toggle.setColors(Color.rgb(0x4f, 0xbe, 0x79), Color.rgb(0xd3, 0xd3, 0xd3));
+            } else {
+                toggle.setColors(0, 0);
+            }
+            toggle.setElements(labels[count], hasIcons(position) ? icons[count] : null, selected);
+            toggle.commitUpdate();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package org.honorato.multistatetogglebutton.benchmark;
+
+import org.honorato.multistatetogglebutton.ElementDiff;
+import org.honorato.multistatetogglebutton.IdIndex;
+import org.honorato.multistatetogglebutton.SelectionDelta;
+import org.honorato.multistatetogglebutton.SelectionModel;
+import org.honorato.multistatetogglebutton.SelectionRules;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The selection work done by the toggles on every tap, state change and new element list,
+ * without any view
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SelectionBenchmark {
+
+    @Param({"2", "10", "100", "1000"})
+    int elementCount;
+
+    private final SelectionModel selection = new SelectionModel();
+    private final SelectionDelta delta = new SelectionDelta();
+
+    /**
+     * Pairs of exclusive positions and at most half of the elements selected
+     */
+    private final SelectionRules rules = new SelectionRules();
+
+    private int position;
+
+    /**
+     * Two alternating selections, every other element selected in each
+     */
+    private boolean[] evenStates, oddStates;
+    private boolean odd;
+
+    private boolean[] statesBuffer;
+
+    /**
+     * Ids of the element list, and the same list with an element removed and one inserted
+     */
+    private long[] ids, changedIds;
+    private IdIndex positions;
+    private final SelectionModel remapped = new SelectionModel();
+
+    @Setup
+    public void setUp() {
+        selection.setSize(elementCount);
+        evenStates = new boolean[elementCount];
+        oddStates = new boolean[elementCount];
+        for (int i = 0; i < elementCount; i++) {
+            evenStates[i] = i % 2 == 0;
+            oddStates[i] = !evenStates[i];
+        }
+        selection.setStates(evenStates);
+        for (int i = 0; i + 1 < Math.min(elementCount, 64); i += 2) {
+            rules.addExclusiveGroup(i, i + 1);
+        }
+        rules.setMaxCount(Math.max(1, elementCount / 2));
+        statesBuffer = new boolean[elementCount];
+
+        ids = new long[elementCount];
+        changedIds = new long[elementCount];
+        for (int i = 0; i < elementCount; i++) {
+            ids[i] = i;
+            changedIds[i] = i + 1;
+        }
+        changedIds[elementCount / 2] = -1;
+        positions = ElementDiff.indexIds(ids);
+    }
+
+    private int nextPosition() {
+        position = position + 1 == elementCount ? 0 : position + 1;
+        return position;
+    }
+
+    @Benchmark
+    public int setValueSingleChoice() {
+        if (delta.computeValue(selection, nextPosition(), false)) {
+            delta.applyTo(selection);
+        }
+        return selection.getValue();
+    }
+
+    @Benchmark
+    public int setValueMultipleChoice() {
+        if (delta.computeValue(selection, nextPosition(), true)) {
+            delta.applyTo(selection);
+        }
+        return selection.getSelectedCount();
+    }
+
+    @Benchmark
+    public int setValueWithRules() {
+        if (delta.computeValue(selection, nextPosition(), true, rules)) {
+            delta.applyTo(selection);
+        }
+        return selection.getSelectedCount();
+    }
+
+    @Benchmark
+    public int getValue() {
+        return selection.getValue();
+    }
+
+    @Benchmark
+    public boolean[] getStates() {
+        return selection.getStates(statesBuffer);
+    }
+
+    @Benchmark
+    public int setStates() {
+        odd = !odd;
+        if (delta.computeStates(selection, odd ? oddStates : evenStates)) {
+            delta.applyTo(selection);
+        }
+        return delta.getChangeCount();
+    }
+
+    @Benchmark
+    public boolean diffElements() {
+        remapped.copyFrom(selection);
+        int[] previousPositions = ElementDiff.previousPositions(positions, changedIds);
+        return remapped.remap(previousPositions) && ElementDiff.indexIds(changedIds).size() == elementCount;
+    }
+}
@@ -0,0 +1,32 @@
+package org.honorato.multistatetogglebutton;
+
+/**
+ * Matches the elements of two lists by their stable id
+ */
+public final class ElementDiff {
+
+    private ElementDiff() {
+    }
+
+    /**
+     * @return The position of every id
+     * @throws IllegalArgumentException if two elements have the same id
+     */
+    public static IdIndex indexIds(long[] ids) {
+        return new IdIndex(ids);
+    }
+
+    /**
+     * @param previousPositions the positions of the previous list, see {@link #indexIds(long[])}
+     * @param ids               the ids of the new list
+     * @return For each new position, the previous position of its element or -1,
+     * as expected by {@link SelectionModel#remap(int[])}
+     */
+    public static int[] previousPositions(IdIndex previousPositions, long[] ids) {
+        int[] positions = new int[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            positions[i] = previousPositions.get(ids[i]);
+        }
+        return positions;
+    }
+}
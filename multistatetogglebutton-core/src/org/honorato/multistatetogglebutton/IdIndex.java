@@ -0,0 +1,78 @@
+package org.honorato.multistatetogglebutton;
+
+/**
+ * The position of every id of a list, in an open addressing table of primitives,
+ * so lookups don't box the id.
+ */
+public final class IdIndex {
+
+    private static final IdIndex EMPTY = new IdIndex(new long[0]);
+
+    private final long[] keys;
+
+    /**
+     * Position of the id in the same slot, -1 for an empty slot
+     */
+    private final int[] values;
+
+    private final int size;
+
+    /**
+     * @throws IllegalArgumentException if two elements have the same id
+     */
+    IdIndex(long[] ids) {
+        int capacity = 1;
+        // At most half full, so that probe sequences stay short
+        while (capacity < ids.length * 2) {
+            capacity <<= 1;
+        }
+        keys = new long[capacity];
+        values = new int[capacity];
+        for (int i = 0; i < capacity; i++) {
+            values[i] = -1;
+        }
+        for (int i = 0; i < ids.length; i++) {
+            int slot = slotOf(ids[i]);
+            if (values[slot] != -1) {
+                throw new IllegalArgumentException("Duplicate id: " + ids[i]);
+            }
+            keys[slot] = ids[i];
+            values[slot] = i;
+        }
+        size = ids.length;
+    }
+
+    /**
+     * @return An index without ids
+     */
+    public static IdIndex empty() {
+        return EMPTY;
+    }
+
+    /**
+     * @return The number of ids
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return The position of the id, or -1
+     */
+    public int get(long id) {
+        return values[slotOf(id)];
+    }
+
+    /**
+     * @return The slot holding the id, or the empty slot where it would go
+     */
+    private int slotOf(long id) {
+        final int mask = keys.length - 1;
+        int h = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+        int slot = (h ^ (h >>> 16)) & mask;
+        while (values[slot] != -1 && keys[slot] != id) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+}
@@ -0,0 +1,132 @@
+package org.honorato.multistatetogglebutton;
+
+/**
+ * The positions whose state flips when a selection changes, computed before anything
+ * is applied so that views only touch those. Deltas are reused between changes and
+ * don't allocate unless the element count grows.
+ */
+public final class SelectionDelta {
+
+    /**
+     * Returned by {@link #getChangedIndex()} when several positions changed
+     */
+    public static final int INDEX_MULTIPLE = -1;
+
+    /**
+     * A set bit for every position that flips
+     */
+    private final SelectionModel changes = new SelectionModel();
+
+    /**
+     * Whether the last computed value broke a rule
+     */
+    private boolean rejected;
+
+    /**
+     * Computes the change of picking a position, as when tapping a segment: it flips in
+     * multiple choice mode, otherwise it becomes the only selected one. Positions out of
+     * range clear the selection in single choice mode.
+     *
+     * @return true if anything changes
+     */
+    public boolean computeValue(SelectionModel selection, int position, boolean multipleChoice) {
+        return computeValue(selection, position, multipleChoice, null);
+    }
+
+    /**
+     * Same as {@link #computeValue(SelectionModel, int, boolean)}, but also deselects the positions
+     * exclusive with the picked one, and changes nothing if the result breaks a rule
+     *
+     * @param rules the rules to enforce, may be null
+     * @return true if anything changes
+     */
+    public boolean computeValue(SelectionModel selection, int position, boolean multipleChoice, SelectionRules rules) {
+        changes.setSize(selection.size());
+        rejected = false;
+        final boolean inRange = position >= 0 && position < selection.size();
+        if (multipleChoice) {
+            if (inRange) {
+                changes.set(position, true);
+            }
+        } else {
+            for (int i = selection.nextSelected(0); i != -1; i = selection.nextSelected(i + 1)) {
+                if (i != position) {
+                    changes.set(i, true);
+                }
+            }
+            if (inRange && !selection.isSelected(position)) {
+                changes.set(position, true);
+            }
+        }
+        if (rules != null) {
+            if (multipleChoice && inRange && !selection.isSelected(position)) {
+                long exclusive = rules.getExclusiveMask(position) & selection.getMask();
+                while (exclusive != 0) {
+                    changes.set(Long.numberOfTrailingZeros(exclusive), true);
+                    exclusive &= exclusive - 1;
+                }
+            }
+            if (!rules.allows(selection, changes, multipleChoice)) {
+                changes.clear();
+                rejected = true;
+            }
+        }
+        return changes.getSelectedCount() > 0;
+    }
+
+    /**
+     * @return true if the last value computed broke a rule, and so changes nothing
+     */
+    public boolean isRejected() {
+        return rejected;
+    }
+
+    /**
+     * Computes the change of replacing the selection by the given states
+     *
+     * @return true if anything changes, false as well if the length doesn't match
+     */
+    public boolean computeStates(SelectionModel selection, boolean[] states) {
+        changes.setSize(selection.size());
+        rejected = false;
+        if (states == null || states.length != selection.size()) {
+            return false;
+        }
+        for (int i = 0; i < states.length; i++) {
+            if (selection.isSelected(i) != states[i]) {
+                changes.set(i, true);
+            }
+        }
+        return changes.getSelectedCount() > 0;
+    }
+
+    /**
+     * @return The number of positions that flip
+     */
+    public int getChangeCount() {
+        return changes.getSelectedCount();
+    }
+
+    /**
+     * @return The position that flips if it's the only one, or {@link #INDEX_MULTIPLE}
+     */
+    public int getChangedIndex() {
+        return changes.getSelectedCount() == 1 ? changes.getValue() : INDEX_MULTIPLE;
+    }
+
+    /**
+     * @return The first position that flips at or after the given one, or -1
+     */
+    public int nextChanged(int fromIndex) {
+        return changes.nextSelected(fromIndex);
+    }
+
+    /**
+     * Flips the changed positions of the selection the delta was computed for
+     */
+    public void applyTo(SelectionModel selection) {
+        for (int i = changes.nextSelected(0); i != -1; i = changes.nextSelected(i + 1)) {
+            selection.toggle(i);
+        }
+    }
+}
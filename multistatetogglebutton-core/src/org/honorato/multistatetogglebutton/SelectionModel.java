@@ -0,0 +1,314 @@
+package org.honorato.multistatetogglebutton;
+
+import java.util.Arrays;
+
+/**
+ * The selection of a toggle button, stored as a packed bit set.
+ * Reads never allocate and the first selected position is kept up to date,
+ * so {@link #getValue()} is O(1).
+ */
+public final class SelectionModel {
+
+    private static final long[] EMPTY = new long[0];
+
+    private long[] words = EMPTY;
+
+    private int size;
+
+    /**
+     * Number of selected positions
+     */
+    private int count;
+
+    /**
+     * Lowest selected position, or -1
+     */
+    private int first = -1;
+
+    public SelectionModel() {
+    }
+
+    public SelectionModel(int size) {
+        setSize(size);
+    }
+
+    /**
+     * @return The number of positions in this selection
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Resizes the selection, clearing every position
+     *
+     * @param size the new number of positions
+     */
+    public void setSize(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Negative size: " + size);
+        }
+        int wordCount = wordCount(size);
+        if (words.length != wordCount) {
+            words = wordCount == 0 ? EMPTY : new long[wordCount];
+        } else {
+            Arrays.fill(words, 0L);
+        }
+        this.size = size;
+        this.count = 0;
+        this.first = -1;
+    }
+
+    /**
+     * @return The number of selected positions
+     */
+    public int getSelectedCount() {
+        return count;
+    }
+
+    /**
+     * @return The first selected position, or -1 if nothing is selected
+     */
+    public int getValue() {
+        return first;
+    }
+
+    public boolean isSelected(int index) {
+        checkIndex(index);
+        return (words[index >>> 6] & (1L << index)) != 0;
+    }
+
+    /**
+     * @return true if the state of the position changed
+     */
+    public boolean set(int index, boolean selected) {
+        checkIndex(index);
+        final int word = index >>> 6;
+        final long bit = 1L << index;
+        if (((words[word] & bit) != 0) == selected) {
+            return false;
+        }
+        if (selected) {
+            words[word] |= bit;
+            count++;
+            if (first == -1 || index < first) {
+                first = index;
+            }
+        } else {
+            words[word] &= ~bit;
+            count--;
+            if (index == first) {
+                first = nextSelected(index + 1);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Flips the state of a position
+     *
+     * @return The new state of the position
+     */
+    public boolean toggle(int index) {
+        boolean selected = !isSelected(index);
+        set(index, selected);
+        return selected;
+    }
+
+    /**
+     * Selects a single position, clearing all the others
+     *
+     * @return true if the selection changed
+     */
+    public boolean select(int index) {
+        checkIndex(index);
+        if (count == 1 && first == index) {
+            return false;
+        }
+        Arrays.fill(words, 0L);
+        words[index >>> 6] = 1L << index;
+        count = 1;
+        first = index;
+        return true;
+    }
+
+    /**
+     * Clears every position
+     *
+     * @return true if the selection changed
+     */
+    public boolean clear() {
+        if (count == 0) {
+            return false;
+        }
+        Arrays.fill(words, 0L);
+        count = 0;
+        first = -1;
+        return true;
+    }
+
+    /**
+     * @return The first selected position at or after the given one, or -1
+     */
+    public int nextSelected(int fromIndex) {
+        if (fromIndex >= size) {
+            return -1;
+        }
+        int word = fromIndex >>> 6;
+        long bits = words[word] & (-1L << fromIndex);
+        while (true) {
+            if (bits != 0) {
+                int index = (word << 6) + Long.numberOfTrailingZeros(bits);
+                return index < size ? index : -1;
+            }
+            if (++word == words.length) {
+                return -1;
+            }
+            bits = words[word];
+        }
+    }
+
+    /**
+     * Copies the selection into the given array, allocating a new one only
+     * if it is null or its length doesn't match.
+     *
+     * @return The filled array
+     */
+    public boolean[] getStates(boolean[] into) {
+        if (into == null || into.length != size) {
+            into = new boolean[size];
+        }
+        for (int i = 0; i < size; i++) {
+            into[i] = (words[i >>> 6] & (1L << i)) != 0;
+        }
+        return into;
+    }
+
+    /**
+     * Replaces the selection. The array must have the same length as this selection.
+     *
+     * @return true if any position changed
+     */
+    public boolean setStates(boolean[] states) {
+        if (states == null || states.length != size) {
+            throw new IllegalArgumentException("Expected " + size + " states");
+        }
+        boolean changed = false;
+        for (int i = 0; i < size; i++) {
+            changed |= set(i, states[i]);
+        }
+        return changed;
+    }
+
+    /**
+     * @return The first 64 positions packed into a long, position 0 being the lowest bit
+     */
+    public long getMask() {
+        return words.length == 0 ? 0L : words[0];
+    }
+
+    /**
+     * @return true if the given states match this selection
+     */
+    public boolean contentEquals(boolean[] states) {
+        if (states == null || states.length != size) {
+            return false;
+        }
+        for (int i = 0; i < size; i++) {
+            if (states[i] != ((words[i >>> 6] & (1L << i)) != 0)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return A copy of the packed selection, 64 positions per long
+     */
+    public long[] toWords() {
+        return words.clone();
+    }
+
+    /**
+     * @return true if the given packed selection, as returned by {@link #toWords()}, matches this one
+     */
+    public boolean contentEquals(int size, long[] words) {
+        return this.size == size && Arrays.equals(this.words, words);
+    }
+
+    /**
+     * Unpacks a selection returned by {@link #toWords()}
+     */
+    public static boolean[] toStates(int size, long[] words) {
+        boolean[] states = new boolean[size];
+        for (int i = 0; i < size; i++) {
+            states[i] = (words[i >>> 6] & (1L << i)) != 0;
+        }
+        return states;
+    }
+
+    /**
+     * Resizes the selection for a new list of elements, keeping the state of the ones still present
+     *
+     * @param previousPositions for each new position, the previous position of its element or -1
+     * @return true if the selection changed, in size or in state
+     */
+    public boolean remap(int[] previousPositions) {
+        final long[] previous = words.clone();
+        final int previousSize = size;
+        setSize(previousPositions.length);
+        for (int i = 0; i < size; i++) {
+            final int position = previousPositions[i];
+            if (position >= 0 && position < previousSize && (previous[position >>> 6] & (1L << position)) != 0) {
+                set(i, true);
+            }
+        }
+        return previousSize != size || !Arrays.equals(previous, words);
+    }
+
+    public void copyFrom(SelectionModel other) {
+        if (words.length != other.words.length) {
+            words = other.words.length == 0 ? EMPTY : new long[other.words.length];
+        }
+        System.arraycopy(other.words, 0, words, 0, other.words.length);
+        size = other.size;
+        count = other.count;
+        first = other.first;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof SelectionModel)) {
+            return false;
+        }
+        SelectionModel other = (SelectionModel) o;
+        return size == other.size && count == other.count && Arrays.equals(words, other.words);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * size + Arrays.hashCode(words);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(size + 2).append('[');
+        for (int i = 0; i < size; i++) {
+            builder.append(isSelected(i) ? '1' : '0');
+        }
+        return builder.append(']').toString();
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+        }
+    }
+
+    private static int wordCount(int size) {
+        return (size + 63) >>> 6;
+    }
+}
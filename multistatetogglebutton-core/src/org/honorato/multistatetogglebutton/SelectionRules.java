@@ -0,0 +1,142 @@
+package org.honorato.multistatetogglebutton;
+
+import java.util.Arrays;
+
+/**
+ * Constraints on the selection a tap can produce: a minimum and maximum number of selected
+ * positions, groups of mutually exclusive positions and positions that can't be deselected.
+ * Positions are kept as bitmasks, so rules only apply to the first 64 positions.
+ *
+ * Rules are checked by {@link SelectionDelta#computeValue(SelectionModel, int, boolean, SelectionRules)}
+ * before anything is applied. A change is rejected when it breaks a rule, unless it gets closer to
+ * satisfying it, e.g. selecting one position while fewer than the minimum are selected.
+ */
+public final class SelectionRules {
+
+    private static final long[] NO_GROUPS = new long[0];
+
+    private int minCount;
+
+    private int maxCount = Integer.MAX_VALUE;
+
+    private long requiredMask;
+
+    private long[] exclusiveGroups = NO_GROUPS;
+
+    public int getMinCount() {
+        return minCount;
+    }
+
+    /**
+     * @param count the number of positions that must stay selected, 0 for no minimum
+     */
+    public void setMinCount(int count) {
+        if (count < 0 || count > maxCount) {
+            throw new IllegalArgumentException("Invalid minimum: " + count + ", maximum: " + maxCount);
+        }
+        this.minCount = count;
+    }
+
+    public int getMaxCount() {
+        return maxCount;
+    }
+
+    /**
+     * @param count the number of positions that can be selected at once, Integer.MAX_VALUE for no maximum
+     */
+    public void setMaxCount(int count) {
+        if (count < minCount) {
+            throw new IllegalArgumentException("Invalid maximum: " + count + ", minimum: " + minCount);
+        }
+        this.maxCount = count;
+    }
+
+    /**
+     * @return A set bit for every position that can't be deselected
+     */
+    public long getRequiredMask() {
+        return requiredMask;
+    }
+
+    /**
+     * Required positions only apply in multiple choice mode. In single choice mode a tap always
+     * moves the selection, otherwise nothing could be picked once a required position is selected.
+     *
+     * @param position a position that, once selected, can't be deselected by a tap
+     */
+    public void setRequired(int position, boolean required) {
+        final long bit = bit(position);
+        requiredMask = required ? requiredMask | bit : requiredMask & ~bit;
+    }
+
+    /**
+     * Makes the given positions mutually exclusive: selecting one of them deselects the others.
+     * A position may belong to several groups.
+     */
+    public void addExclusiveGroup(int... positions) {
+        long group = 0;
+        for (int position : positions) {
+            group |= bit(position);
+        }
+        if (Long.bitCount(group) < 2) {
+            throw new IllegalArgumentException("An exclusive group needs at least two positions");
+        }
+        exclusiveGroups = Arrays.copyOf(exclusiveGroups, exclusiveGroups.length + 1);
+        exclusiveGroups[exclusiveGroups.length - 1] = group;
+    }
+
+    /**
+     * @return The positions that selecting the given one deselects
+     */
+    public long getExclusiveMask(int position) {
+        if (position < 0 || position >= 64) {
+            return 0;
+        }
+        final long bit = 1L << position;
+        long mask = 0;
+        for (long group : exclusiveGroups) {
+            if ((group & bit) != 0) {
+                mask |= group;
+            }
+        }
+        return mask & ~bit;
+    }
+
+    /**
+     * Removes every rule
+     */
+    public void clear() {
+        minCount = 0;
+        maxCount = Integer.MAX_VALUE;
+        requiredMask = 0;
+        exclusiveGroups = NO_GROUPS;
+    }
+
+    /**
+     * @param selection      the current selection
+     * @param changes        a set bit for every position that would flip
+     * @param multipleChoice whether the toggle is in multiple choice mode, required positions are ignored otherwise
+     * @return true if flipping the positions doesn't break any rule, or gets closer to satisfying it
+     */
+    public boolean allows(SelectionModel selection, SelectionModel changes, boolean multipleChoice) {
+        if (multipleChoice && (changes.getMask() & selection.getMask() & requiredMask) != 0) {
+            return false;
+        }
+        final int count = selection.getSelectedCount();
+        int newCount = count;
+        for (int i = changes.nextSelected(0); i != -1; i = changes.nextSelected(i + 1)) {
+            newCount += selection.isSelected(i) ? -1 : 1;
+        }
+        if (newCount < minCount && newCount < count) {
+            return false;
+        }
+        return newCount <= maxCount || newCount <= count;
+    }
+
+    private static long bit(int position) {
+        if (position < 0 || position >= 64) {
+            throw new IllegalArgumentException("Rules only apply to positions 0 to 63: " + position);
+        }
+        return 1L << position;
+    }
+}
@@ -0,0 +1,54 @@
+package org.honorato.multistatetogglebutton;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ElementDiffTest {
+
+    @Test
+    public void indexesIds() {
+        IdIndex positions = ElementDiff.indexIds(new long[]{7, 3, 9});
+        assertEquals(3, positions.size());
+        assertEquals(1, positions.get(3L));
+        assertEquals(-1, positions.get(4L));
+    }
+
+    @Test
+    public void indexesCollidingIds() {
+        long[] ids = new long[100];
+        for (int i = 0; i < ids.length; i++) {
+            // Equal halves, so that they all hash to the same slot
+            ids[i] = ((long) i << 32) | i;
+        }
+        IdIndex positions = ElementDiff.indexIds(ids);
+        for (int i = 0; i < ids.length; i++) {
+            assertEquals(i, positions.get(ids[i]));
+        }
+        assertEquals(-1, positions.get(-1L));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsDuplicateIds() {
+        ElementDiff.indexIds(new long[]{1, 2, 1});
+    }
+
+    @Test
+    public void findsPreviousPositions() {
+        IdIndex previous = ElementDiff.indexIds(new long[]{10, 20, 30});
+        int[] positions = ElementDiff.previousPositions(previous, new long[]{30, 40, 10});
+        assertArrayEquals(new int[]{2, -1, 0}, positions);
+    }
+
+    @Test
+    public void keepsSelectionAcrossReorders() {
+        long[] ids = new long[]{10, 20, 30};
+        SelectionModel selection = new SelectionModel(3);
+        selection.set(1, true);
+
+        long[] newIds = new long[]{20, 30};
+        selection.remap(ElementDiff.previousPositions(ElementDiff.indexIds(ids), newIds));
+        assertArrayEquals(new boolean[]{true, false}, selection.getStates(null));
+    }
+}
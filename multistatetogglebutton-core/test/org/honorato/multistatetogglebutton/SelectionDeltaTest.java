@@ -0,0 +1,77 @@
+package org.honorato.multistatetogglebutton;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SelectionDeltaTest {
+
+    private final SelectionDelta delta = new SelectionDelta();
+
+    private static SelectionModel selection(boolean... states) {
+        SelectionModel selection = new SelectionModel(states.length);
+        selection.setStates(states);
+        return selection;
+    }
+
+    @Test
+    public void singleChoiceMovesTheSelection() {
+        SelectionModel selection = selection(true, false, false);
+        assertTrue(delta.computeValue(selection, 2, false));
+        assertEquals(2, delta.getChangeCount());
+        assertEquals(SelectionDelta.INDEX_MULTIPLE, delta.getChangedIndex());
+        assertEquals(0, delta.nextChanged(0));
+        assertEquals(2, delta.nextChanged(1));
+
+        delta.applyTo(selection);
+        assertArrayEquals(new boolean[]{false, false, true}, selection.getStates(null));
+    }
+
+    @Test
+    public void singleChoiceKeepsTheSelectedPosition() {
+        SelectionModel selection = selection(false, true);
+        assertFalse(delta.computeValue(selection, 1, false));
+        assertEquals(0, delta.getChangeCount());
+    }
+
+    @Test
+    public void singleChoiceClearsOutOfRange() {
+        SelectionModel selection = selection(false, true);
+        assertTrue(delta.computeValue(selection, -1, false));
+        assertEquals(1, delta.getChangedIndex());
+        delta.applyTo(selection);
+        assertEquals(0, selection.getSelectedCount());
+    }
+
+    @Test
+    public void multipleChoiceFlipsThePosition() {
+        SelectionModel selection = selection(true, false);
+        assertTrue(delta.computeValue(selection, 0, true));
+        assertEquals(0, delta.getChangedIndex());
+        delta.applyTo(selection);
+        assertArrayEquals(new boolean[]{false, false}, selection.getStates(null));
+
+        assertFalse(delta.computeValue(selection, 5, true));
+    }
+
+    @Test
+    public void statesOnlyChangeDifferingPositions() {
+        SelectionModel selection = selection(true, false, true, false);
+        assertTrue(delta.computeStates(selection, new boolean[]{true, true, true, false}));
+        assertEquals(1, delta.getChangedIndex());
+
+        assertFalse(delta.computeStates(selection, new boolean[]{true, false, true, false}));
+        assertFalse(delta.computeStates(selection, new boolean[]{true}));
+        assertFalse(delta.computeStates(selection, null));
+    }
+
+    @Test
+    public void computingDoesNotChangeTheSelection() {
+        SelectionModel selection = selection(true, false, false);
+        delta.computeValue(selection, 1, false);
+        assertArrayEquals(new boolean[]{true, false, false}, selection.getStates(null));
+    }
+}
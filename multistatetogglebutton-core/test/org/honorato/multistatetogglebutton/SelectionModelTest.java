@@ -0,0 +1,153 @@
+package org.honorato.multistatetogglebutton;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SelectionModelTest {
+
+    @Test
+    public void startsEmpty() {
+        SelectionModel selection = new SelectionModel(3);
+        assertEquals(3, selection.size());
+        assertEquals(0, selection.getSelectedCount());
+        assertEquals(-1, selection.getValue());
+        assertEquals(0L, selection.getMask());
+    }
+
+    @Test
+    public void tracksCountAndFirstPosition() {
+        SelectionModel selection = new SelectionModel(5);
+        assertTrue(selection.set(3, true));
+        assertTrue(selection.set(1, true));
+        assertFalse(selection.set(1, true));
+        assertEquals(2, selection.getSelectedCount());
+        assertEquals(1, selection.getValue());
+
+        assertTrue(selection.set(1, false));
+        assertEquals(3, selection.getValue());
+        assertFalse(selection.toggle(3));
+        assertEquals(-1, selection.getValue());
+        assertEquals(0, selection.getSelectedCount());
+    }
+
+    @Test
+    public void selectClearsTheOthers() {
+        SelectionModel selection = new SelectionModel(4);
+        selection.set(0, true);
+        selection.set(2, true);
+        assertTrue(selection.select(3));
+        assertFalse(selection.select(3));
+        assertEquals(1, selection.getSelectedCount());
+        assertEquals(0b1000L, selection.getMask());
+        assertTrue(selection.clear());
+        assertFalse(selection.clear());
+    }
+
+    @Test
+    public void spansSeveralWords() {
+        SelectionModel selection = new SelectionModel(200);
+        selection.set(63, true);
+        selection.set(64, true);
+        selection.set(199, true);
+        assertEquals(63, selection.nextSelected(0));
+        assertEquals(64, selection.nextSelected(64));
+        assertEquals(199, selection.nextSelected(65));
+        assertEquals(-1, selection.nextSelected(200));
+        assertEquals(1L << 63, selection.getMask());
+
+        selection.set(63, false);
+        assertEquals(64, selection.getValue());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void rejectsPositionsOutOfRange() {
+        new SelectionModel(2).isSelected(2);
+    }
+
+    @Test
+    public void setSizeClearsTheSelection() {
+        SelectionModel selection = new SelectionModel(3);
+        selection.set(1, true);
+        selection.setSize(3);
+        assertEquals(0, selection.getSelectedCount());
+        assertEquals(-1, selection.getValue());
+    }
+
+    @Test
+    public void copiesStatesWithoutAllocatingWhenPossible() {
+        SelectionModel selection = new SelectionModel(3);
+        assertTrue(selection.setStates(new boolean[]{true, false, true}));
+        assertFalse(selection.setStates(new boolean[]{true, false, true}));
+
+        boolean[] into = new boolean[3];
+        assertSame(into, selection.getStates(into));
+        assertArrayEquals(new boolean[]{true, false, true}, into);
+        assertArrayEquals(new boolean[]{true, false, true}, selection.getStates(new boolean[2]));
+        assertTrue(selection.contentEquals(new boolean[]{true, false, true}));
+        assertFalse(selection.contentEquals(new boolean[]{true, false}));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsStatesOfAnotherLength() {
+        new SelectionModel(3).setStates(new boolean[2]);
+    }
+
+    @Test
+    public void packsIntoWords() {
+        SelectionModel selection = new SelectionModel(70);
+        selection.set(2, true);
+        selection.set(69, true);
+        long[] words = selection.toWords();
+        assertTrue(selection.contentEquals(70, words));
+        assertFalse(selection.contentEquals(71, words));
+
+        boolean[] states = SelectionModel.toStates(70, words);
+        assertTrue(states[2]);
+        assertTrue(states[69]);
+        assertTrue(selection.contentEquals(states));
+    }
+
+    @Test
+    public void remapKeepsTheStateOfMovedElements() {
+        SelectionModel selection = new SelectionModel(3);
+        selection.setStates(new boolean[]{true, false, true});
+        // The first element removed, a new one added at the end
+        assertTrue(selection.remap(new int[]{1, 2, -1}));
+        assertArrayEquals(new boolean[]{false, true, false}, selection.getStates(null));
+    }
+
+    @Test
+    public void remapReportsResizes() {
+        SelectionModel selection = new SelectionModel(2);
+        selection.set(0, true);
+        assertTrue(selection.remap(new int[]{0, 1, -1}));
+        assertEquals(3, selection.size());
+        assertFalse(selection.remap(new int[]{0, 1, 2}));
+    }
+
+    @Test
+    public void copiesAndCompares() {
+        SelectionModel selection = new SelectionModel(100);
+        selection.set(70, true);
+        SelectionModel copy = new SelectionModel();
+        copy.copyFrom(selection);
+        assertEquals(selection, copy);
+        assertEquals(selection.hashCode(), copy.hashCode());
+        assertEquals(70, copy.getValue());
+
+        copy.set(70, false);
+        assertFalse(selection.equals(copy));
+        assertEquals("[0100]", toString(new boolean[]{false, true, false, false}));
+    }
+
+    private static String toString(boolean[] states) {
+        SelectionModel selection = new SelectionModel(states.length);
+        selection.setStates(states);
+        return selection.toString();
+    }
+}
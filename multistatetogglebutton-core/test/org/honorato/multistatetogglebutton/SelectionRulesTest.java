@@ -0,0 +1,207 @@
+package org.honorato.multistatetogglebutton;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SelectionRulesTest {
+
+    private final SelectionDelta delta = new SelectionDelta();
+    private final SelectionRules rules = new SelectionRules();
+    private SelectionModel selection;
+
+    @Before
+    public void setUp() {
+        selection = new SelectionModel(5);
+    }
+
+    /**
+     * Taps a position, applying the change if the rules allow it
+     *
+     * @return true if anything changed
+     */
+    private boolean tap(int position, boolean multipleChoice) {
+        boolean changed = delta.computeValue(selection, position, multipleChoice, rules);
+        if (changed) {
+            delta.applyTo(selection);
+        }
+        return changed;
+    }
+
+    private void assertStates(boolean... states) {
+        assertArrayEquals(states, selection.getStates(null));
+    }
+
+    @Test
+    public void noRulesChangeNothing() {
+        assertTrue(tap(0, true));
+        assertTrue(tap(0, true));
+        assertFalse(delta.isRejected());
+        assertStates(false, false, false, false, false);
+    }
+
+    @Test
+    public void minCountKeepsPositionsSelected() {
+        rules.setMinCount(1);
+        assertTrue(tap(2, true));
+        assertFalse(tap(2, true));
+        assertTrue(delta.isRejected());
+        assertStates(false, false, true, false, false);
+    }
+
+    @Test
+    public void minCountAllowsGettingCloser() {
+        rules.setMinCount(2);
+        assertTrue(tap(0, true));
+        assertFalse(delta.isRejected());
+        assertTrue(tap(1, true));
+        assertFalse(tap(1, true));
+        assertTrue(delta.isRejected());
+    }
+
+    @Test
+    public void minCountPreventsClearingInSingleChoice() {
+        rules.setMinCount(1);
+        assertTrue(tap(1, false));
+        assertFalse(tap(-1, false));
+        assertTrue(delta.isRejected());
+        assertTrue(tap(3, false));
+        assertStates(false, false, false, true, false);
+    }
+
+    @Test
+    public void maxCountRejectsExtraSelections() {
+        rules.setMaxCount(2);
+        assertTrue(tap(0, true));
+        assertTrue(tap(1, true));
+        assertFalse(tap(2, true));
+        assertTrue(delta.isRejected());
+        assertStates(true, true, false, false, false);
+
+        // Deselecting is always fine
+        assertTrue(tap(0, true));
+        assertTrue(tap(2, true));
+        assertStates(false, true, true, false, false);
+    }
+
+    @Test
+    public void maxCountAllowsGettingCloser() {
+        selection.setStates(new boolean[]{true, true, true, false, false});
+        rules.setMaxCount(1);
+        assertTrue(tap(0, true));
+        assertFalse(tap(3, true));
+    }
+
+    @Test
+    public void exclusiveGroupsDeselectTheOthers() {
+        rules.addExclusiveGroup(0, 1, 2);
+        tap(0, true);
+        tap(3, true);
+        assertTrue(tap(2, true));
+        assertEquals(2, delta.getChangeCount());
+        assertStates(false, false, true, true, false);
+    }
+
+    @Test
+    public void positionsCanBeInSeveralGroups() {
+        rules.addExclusiveGroup(0, 1);
+        rules.addExclusiveGroup(1, 2);
+        tap(0, true);
+        tap(2, true);
+        assertTrue(tap(1, true));
+        assertStates(false, true, false, false, false);
+        assertEquals(0b101L, rules.getExclusiveMask(1));
+    }
+
+    @Test
+    public void exclusiveGroupsCountTowardsTheMaximum() {
+        rules.addExclusiveGroup(0, 1);
+        rules.setMaxCount(2);
+        tap(0, true);
+        tap(3, true);
+        // Swapping within the group keeps two selected
+        assertTrue(tap(1, true));
+        assertStates(false, true, false, true, false);
+    }
+
+    @Test
+    public void requiredPositionsStaySelected() {
+        rules.setRequired(4, true);
+        assertTrue(tap(4, true));
+        assertFalse(tap(4, true));
+        assertTrue(delta.isRejected());
+        assertTrue(tap(0, true));
+        assertStates(true, false, false, false, true);
+        assertEquals(1L << 4, rules.getRequiredMask());
+
+        rules.setRequired(4, false);
+        assertTrue(tap(4, true));
+        assertEquals(0L, rules.getRequiredMask());
+    }
+
+    @Test
+    public void requiredPositionsCantBeDeselectedByGroups() {
+        rules.setRequired(0, true);
+        rules.addExclusiveGroup(0, 1);
+        tap(0, true);
+        assertFalse(tap(1, true));
+        assertTrue(delta.isRejected());
+        assertStates(true, false, false, false, false);
+    }
+
+    @Test
+    public void requiredPositionsDontLockSingleChoice() {
+        rules.setRequired(0, true);
+        assertTrue(tap(0, false));
+        assertTrue(tap(2, false));
+        assertStates(false, false, true, false, false);
+    }
+
+    @Test
+    public void rejectionsChangeNothing() {
+        rules.setMaxCount(1);
+        tap(0, true);
+        assertFalse(tap(1, true));
+        assertEquals(0, delta.getChangeCount());
+        assertEquals(-1, delta.nextChanged(0));
+    }
+
+    @Test
+    public void clearRemovesEveryRule() {
+        rules.setMinCount(1);
+        rules.setMaxCount(1);
+        rules.setRequired(1, true);
+        rules.addExclusiveGroup(0, 1);
+        rules.clear();
+        assertEquals(0, rules.getMinCount());
+        assertEquals(Integer.MAX_VALUE, rules.getMaxCount());
+        assertEquals(0L, rules.getRequiredMask());
+        assertEquals(0L, rules.getExclusiveMask(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMinimumAboveMaximum() {
+        rules.setMaxCount(1);
+        rules.setMinCount(2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMaximumBelowMinimum() {
+        rules.setMinCount(2);
+        rules.setMaxCount(1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsPositionsPast64() {
+        rules.setRequired(64, true);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsGroupsOfOne() {
+        rules.addExclusiveGroup(3, 3);
+    }
+}
@@ -0,0 +1,752 @@
+package org.honorato.multistatetogglebutton;
+
+import android.content.Context;
+import android.content.res.TypedArray;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.Typeface;
+import android.graphics.drawable.Drawable;
+import android.os.Bundle;
+import android.support.annotation.Nullable;
+import android.support.v4.view.ViewCompat;
+import android.support.v4.view.accessibility.AccessibilityNodeInfoCompat;
+import android.support.v4.widget.ExploreByTouchHelper;
+import android.text.Layout;
+import android.text.StaticLayout;
+import android.text.TextPaint;
+import android.text.TextUtils;
+import android.util.AttributeSet;
+import android.util.TypedValue;
+import android.view.KeyEvent;
+import android.view.MotionEvent;
+import android.view.SoundEffectConstants;
+import android.view.accessibility.AccessibilityEvent;
+import android.widget.Button;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A lightweight alternative to {@link MultiStateToggleButton} that draws every
+ * segment, separator and label itself instead of hosting one button per element.
+ * It costs a single view regardless of the element count, which pays off on screens
+ * showing lots of toggles.
+ *
+ * Segments are exposed to accessibility services as virtual views, and can be
+ * focused and selected with a keyboard or D-pad.
+ */
+public class CanvasMultiStateToggleButton extends ToggleButton {
+
+    private static final int PRESSED_OVERLAY_COLOR = 0x1F000000;
+    private static final float DISABLED_ALPHA = 0.5f;
+
+    /**
+     * The specified texts
+     */
+    CharSequence[] texts;
+
+    /**
+     * The texts as drawn, upper cased once when the elements are set
+     */
+    private CharSequence[] displayTexts = new CharSequence[0];
+
+    /**
+     * Width of each display text, measured once when the elements are set
+     */
+    private int[] textWidths = new int[0];
+
+    /**
+     * Optional icons, drawn to the left of each text
+     */
+    Drawable[] icons;
+
+    /**
+     * Resource of each icon, 0 for none, to obtain them again when the tint changes
+     */
+    private int[] iconResourceIds = new int[0];
+
+    /**
+     * If true, multiple buttons can be pressed at the same time
+     */
+    boolean mMultipleChoice = false;
+
+    private final TextPaint textPaint = new TextPaint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint strokePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint overlayPaint = new Paint();
+    private final Paint.FontMetricsInt fontMetrics = new Paint.FontMetricsInt();
+
+    private final int horizontalPadding;
+    private final int verticalPadding;
+    private final int iconPadding;
+    private final int minHeight;
+
+    /**
+     * Segment boundaries in view coordinates, one more than the element count
+     */
+    private int[] segmentEdges = new int[0];
+
+    /**
+     * Text layouts cached per segment, rebuilt only when texts or widths change
+     */
+    private Layout[] layouts = new Layout[0];
+    private boolean layoutsDirty = true;
+
+    private Drawable pressedBackground;
+    private Drawable notPressedBackground;
+    private int pressedTextColor;
+    private int notPressedTextColor;
+    private boolean colorsDirty = true;
+
+    /**
+     * Segment under the user's finger, or -1
+     */
+    private int touchedIndex = -1;
+
+    /**
+     * Segment focused with a keyboard or D-pad while this view has focus, or -1
+     */
+    private int focusedIndex = -1;
+
+    private final SegmentAccessibilityHelper accessibilityHelper;
+
+    public CanvasMultiStateToggleButton(Context context) {
+        this(context, null);
+    }
+
+    public CanvasMultiStateToggleButton(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        setWillNotDraw(false);
+        setClickable(true);
+        setFocusable(true);
+        accessibilityHelper = new SegmentAccessibilityHelper();
+        ViewCompat.setAccessibilityDelegate(this, accessibilityHelper);
+
+        final float density = getResources().getDisplayMetrics().density;
+        horizontalPadding = Math.round(12 * density);
+        verticalPadding = Math.round(8 * density);
+        iconPadding = Math.round(4 * density);
+        minHeight = Math.round(36 * density);
+
+        textPaint.setTextSize(TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_SP, 14,
+                getResources().getDisplayMetrics()));
+        textPaint.setTypeface(Typeface.DEFAULT_BOLD);
+        strokePaint.setStyle(Paint.Style.STROKE);
+        strokePaint.setStrokeWidth(2 * density);
+        overlayPaint.setColor(PRESSED_OVERLAY_COLOR);
+
+        if (attrs == null) {
+            return;
+        }
+        TypedArray a = context.obtainStyledAttributes(attrs, R.styleable.MultiStateToggleButton, 0, 0);
+        try {
+            CharSequence[] texts = a.getTextArray(R.styleable.MultiStateToggleButton_values);
+            readColors(a);
+
+            int length = 0;
+            if (texts != null) {
+                length = texts.length;
+            }
+            setElements(texts, null, new boolean[length]);
+        } finally {
+            a.recycle();
+        }
+    }
+
+    /**
+     * If multiple choice is enabled, the user can select multiple
+     * values simultaneously.
+     *
+     * @param enable
+     */
+    public void enableMultipleChoice(boolean enable) {
+        this.mMultipleChoice = enable;
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        super.setEnabled(enabled);
+        invalidate();
+    }
+
+    /**
+     * Set multiple segments with the specified texts and default
+     * initial values. Initial states are allowed, but both
+     * arrays must be of the same size.
+     *
+     * @param texts            An array of CharSequences for the segments
+     * @param imageResourceIds an optional icon to show, either text, icon or both needs to be set.
+     * @param selected         The default value for the segments
+     */
+    public void setElements(@Nullable CharSequence[] texts, int[] imageResourceIds, boolean[] selected) {
+        final long start = ToggleMetrics.begin(ToggleMetrics.OP_SET_ELEMENTS);
+        try {
+            applyElements(texts, imageResourceIds, selected);
+        } finally {
+            ToggleMetrics.end(ToggleMetrics.OP_SET_ELEMENTS, start);
+        }
+    }
+
+    private void applyElements(@Nullable CharSequence[] texts, int[] imageResourceIds, boolean[] selected) {
+        final int textCount = texts != null ? texts.length : 0;
+        final int iconCount = imageResourceIds != null ? imageResourceIds.length : 0;
+        final int elementCount = Math.max(textCount, iconCount);
+        if (elementCount == 0) {
+            return;
+        }
+
+        this.texts = new CharSequence[elementCount];
+        this.displayTexts = new CharSequence[elementCount];
+        this.textWidths = new int[elementCount];
+        this.icons = new Drawable[elementCount];
+        this.iconResourceIds = new int[elementCount];
+        for (int i = 0; i < elementCount; i++) {
+            this.texts[i] = i < textCount && texts[i] != null ? texts[i] : "";
+            // Upper cased just like the buttons used by MultiStateToggleButton
+            this.displayTexts[i] = this.texts[i].toString().toUpperCase(Locale.getDefault());
+            this.textWidths[i] = (int) Math.ceil(Layout.getDesiredWidth(displayTexts[i], textPaint));
+            if (i < iconCount && imageResourceIds[i] != 0) {
+                this.iconResourceIds[i] = imageResourceIds[i];
+                this.icons[i] = IconCache.obtain(context, imageResourceIds[i], iconTint);
+            }
+        }
+
+        selection.setSize(elementCount);
+        if (selected != null && elementCount == selected.length) {
+            selection.setStates(selected);
+        }
+        this.layouts = new Layout[elementCount];
+        this.segmentEdges = new int[elementCount + 1];
+        this.layoutsDirty = true;
+        this.touchedIndex = -1;
+        if (focusedIndex >= elementCount) {
+            focusedIndex = elementCount - 1;
+        }
+        accessibilityHelper.invalidateRoot();
+        requestLayout();
+        invalidate();
+    }
+
+    /**
+     * @return An array of the segments' text
+     */
+    public CharSequence[] getTexts() {
+        return this.texts;
+    }
+
+    public void setElements(CharSequence[] elements) {
+        int size = elements == null ? 0 : elements.length;
+        setElements(elements, null, new boolean[size]);
+    }
+
+    public void setElements(List<?> elements) {
+        int size = elements == null ? 0 : elements.size();
+        setElements(elements, new boolean[size]);
+    }
+
+    public void setElements(List<?> elements, Object selected) {
+        int size = 0;
+        int index = -1;
+        if (elements != null) {
+            size = elements.size();
+            index = elements.indexOf(selected);
+        }
+        boolean[] selectedArray = new boolean[size];
+        if (index != -1 && index < size) {
+            selectedArray[index] = true;
+        }
+        setElements(elements, selectedArray);
+    }
+
+    public void setElements(List<?> texts, boolean[] selected) {
+        if (texts == null) {
+            texts = new ArrayList<>(0);
+        }
+        setElements(toTexts(texts), null, selected);
+    }
+
+    public void setElements(int arrayResourceId, int selectedPosition) {
+        String[] elements = this.getResources().getStringArray(arrayResourceId);
+
+        int size = elements == null ? 0 : elements.length;
+        boolean[] selected = new boolean[size];
+        if (selectedPosition >= 0 && selectedPosition < size) {
+            selected[selectedPosition] = true;
+        }
+
+        setElements(elements, null, selected);
+    }
+
+    public void setElements(int arrayResourceId, boolean[] selected) {
+        setElements(this.getResources().getStringArray(arrayResourceId), null, selected);
+    }
+
+    /**
+     * @return The first selected position, or -1 if nothing is selected
+     */
+    public int getValue() {
+        return selection.getValue();
+    }
+
+    public void setValue(int position) {
+        final long start = ToggleMetrics.begin(ToggleMetrics.OP_SET_VALUE);
+        try {
+            applyValue(position);
+        } finally {
+            ToggleMetrics.end(ToggleMetrics.OP_SET_VALUE, start);
+        }
+    }
+
+    private void applyValue(int position) {
+        final boolean inRange = position >= 0 && position < selection.size();
+        if (delta.computeValue(selection, position, mMultipleChoice, selectionRules)) {
+            delta.applyTo(selection);
+            onSelectionApplied();
+            notifySelectionChanged(inRange ? position : INDEX_MULTIPLE);
+        } else if (delta.isRejected()) {
+            return;
+        }
+        super.setValue(position);
+    }
+
+    public boolean[] getStates() {
+        return selection.getStates(null);
+    }
+
+    /**
+     * Same as {@link #getStates()}, but reuses the given array when its length matches
+     *
+     * @param into an array to fill, may be null
+     * @return The filled array
+     */
+    public boolean[] getStates(boolean[] into) {
+        return selection.getStates(into);
+    }
+
+    /**
+     * @return The state of the first 64 segments as a bitmask, the first segment being the lowest bit
+     */
+    public long getSelectionMask() {
+        return selection.getMask();
+    }
+
+    /**
+     * @return true if the given states match the current selection, without allocating
+     */
+    public boolean isSelectionEqual(boolean[] states) {
+        return selection.contentEquals(states);
+    }
+
+    @Override
+    public void setStates(boolean[] selected) {
+        final long start = ToggleMetrics.begin(ToggleMetrics.OP_SET_STATES);
+        try {
+            applyStates(selected);
+        } finally {
+            ToggleMetrics.end(ToggleMetrics.OP_SET_STATES, start);
+        }
+    }
+
+    private void applyStates(boolean[] selected) {
+        if (delta.computeStates(selection, selected)) {
+            delta.applyTo(selection);
+            onSelectionApplied();
+            notifySelectionChanged(delta.getChangedIndex());
+        }
+    }
+
+    /**
+     * Redraws, and tells accessibility services about the segments of the applied delta
+     */
+    private void onSelectionApplied() {
+        for (int i = delta.nextChanged(0); i != -1; i = delta.nextChanged(i + 1)) {
+            accessibilityHelper.invalidateVirtualView(i);
+        }
+        invalidate();
+    }
+
+    @Override
+    void onColorsChanged() {
+        colorsDirty = true;
+        invalidate();
+    }
+
+    @Override
+    void onIconTintChanged() {
+        if (icons == null) {
+            return;
+        }
+        // Cached icons share their tint, new ones are obtained instead of tinting these
+        for (int i = 0; i < icons.length; i++) {
+            if (iconResourceIds[i] != 0) {
+                icons[i] = IconCache.obtain(context, iconResourceIds[i], iconTint);
+            }
+        }
+        invalidate();
+    }
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        final long start = ToggleMetrics.begin(ToggleMetrics.OP_MEASURE);
+        try {
+            measureSegments(widthMeasureSpec, heightMeasureSpec);
+        } finally {
+            ToggleMetrics.end(ToggleMetrics.OP_MEASURE, start);
+        }
+    }
+
+    private void measureSegments(int widthMeasureSpec, int heightMeasureSpec) {
+        final int count = selection.size();
+        textPaint.getFontMetricsInt(fontMetrics);
+        final int textHeight = fontMetrics.descent - fontMetrics.ascent;
+        int widest = 0;
+        int tallest = 0;
+        for (int i = 0; i < count; i++) {
+            widest = Math.max(widest, getContentWidth(i));
+            tallest = Math.max(tallest, icons[i] != null ? Math.max(textHeight, icons[i].getIntrinsicHeight()) : textHeight);
+        }
+        int width = count * (widest + 2 * horizontalPadding) + getPaddingLeft() + getPaddingRight();
+        int height = Math.max(minHeight, tallest + 2 * verticalPadding) + getPaddingTop() + getPaddingBottom();
+        setMeasuredDimension(resolveSize(width, widthMeasureSpec), resolveSize(height, heightMeasureSpec));
+    }
+
+    @Override
+    protected void onLayout(boolean changed, int l, int t, int r, int b) {
+        final long start = ToggleMetrics.begin(ToggleMetrics.OP_LAYOUT);
+        try {
+            layoutSegments();
+        } finally {
+            ToggleMetrics.end(ToggleMetrics.OP_LAYOUT, start);
+        }
+    }
+
+    private void layoutSegments() {
+        final int count = selection.size();
+        if (count == 0) {
+            return;
+        }
+        // Same as equally weighted buttons, leftover pixels go to the first segments
+        final int left = getPaddingLeft();
+        final int available = Math.max(0, getWidth() - left - getPaddingRight());
+        final int share = available / count;
+        int remainder = available - share * count;
+        int x = left;
+        for (int i = 0; i < count; i++) {
+            if (segmentEdges[i] != x) {
+                layoutsDirty = true;
+            }
+            segmentEdges[i] = x;
+            x += share;
+            if (remainder > 0) {
+                x++;
+                remainder--;
+            }
+        }
+        segmentEdges[count] = x;
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        final int count = selection.size();
+        if (count == 0) {
+            return;
+        }
+        ensureColors();
+        ensureLayouts();
+
+        final int top = getPaddingTop();
+        final int bottom = getHeight() - getPaddingBottom();
+        final int saveCount = canvas.getSaveCount();
+        if (!isEnabled()) {
+            canvas.saveLayerAlpha(0, 0, getWidth(), getHeight(), Math.round(255 * DISABLED_ALPHA),
+                    Canvas.ALL_SAVE_FLAG);
+        }
+
+        for (int i = 0; i < count; i++) {
+            final int left = segmentEdges[i];
+            final int right = segmentEdges[i + 1];
+            Drawable background = selection.isSelected(i) ? pressedBackground : notPressedBackground;
+            background.setBounds(left, top, right, bottom);
+            background.draw(canvas);
+            if (i == touchedIndex || (i == focusedIndex && isFocused())) {
+                canvas.drawRect(left, top, right, bottom, overlayPaint);
+            }
+            if (i > 0) {
+                canvas.drawLine(left, top, left, bottom, strokePaint);
+            }
+
+            // Icon and text are centered together within the segment
+            Layout layout = layouts[i];
+            Drawable icon = icons[i];
+            int contentWidth = (int) Math.ceil(layout.getLineWidth(0));
+            if (icon != null) {
+                contentWidth += icon.getIntrinsicWidth() + (contentWidth > 0 ? iconPadding : 0);
+            }
+            int x = left + Math.max(0, (right - left - contentWidth) / 2);
+            final int centerY = (top + bottom) / 2;
+            if (icon != null) {
+                icon.setState(selection.isSelected(i) ? TogglePalette.STATE_SELECTED : TogglePalette.STATE_DEFAULT);
+                canvas.save();
+                canvas.translate(x, centerY - icon.getIntrinsicHeight() / 2);
+                icon.draw(canvas);
+                canvas.restore();
+                x += icon.getIntrinsicWidth() + iconPadding;
+            }
+            textPaint.setColor(selection.isSelected(i) ? pressedTextColor : notPressedTextColor);
+            canvas.save();
+            canvas.translate(x, centerY - layout.getHeight() / 2);
+            layout.draw(canvas);
+            canvas.restore();
+        }
+
+        final float inset = strokePaint.getStrokeWidth() / 2;
+        canvas.drawRect(getPaddingLeft() + inset, top + inset,
+                getWidth() - getPaddingRight() - inset, bottom - inset, strokePaint);
+        canvas.restoreToCount(saveCount);
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        if (!isEnabled() || selection.size() == 0) {
+            return false;
+        }
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+                setTouchedIndex(findSegment(event.getX(), event.getY()));
+                return touchedIndex != -1;
+            case MotionEvent.ACTION_MOVE:
+                if (touchedIndex != -1 && findSegment(event.getX(), event.getY()) != touchedIndex) {
+                    setTouchedIndex(-1);
+                }
+                return true;
+            case MotionEvent.ACTION_UP:
+                if (touchedIndex != -1) {
+                    final int position = touchedIndex;
+                    setTouchedIndex(-1);
+                    playSoundEffect(SoundEffectConstants.CLICK);
+                    performClick();
+                    selectFromUser(position);
+                }
+                return true;
+            case MotionEvent.ACTION_CANCEL:
+                setTouchedIndex(-1);
+                return true;
+        }
+        return false;
+    }
+
+    @Override
+    protected boolean dispatchHoverEvent(MotionEvent event) {
+        return accessibilityHelper.dispatchHoverEvent(event) || super.dispatchHoverEvent(event);
+    }
+
+    @Override
+    protected void onFocusChanged(boolean gainFocus, int direction, Rect previouslyFocusedRect) {
+        super.onFocusChanged(gainFocus, direction, previouslyFocusedRect);
+        if (gainFocus && selection.size() > 0) {
+            focusedIndex = selection.getValue() != -1 ? selection.getValue() : 0;
+        } else {
+            focusedIndex = -1;
+        }
+        invalidate();
+    }
+
+    /**
+     * Left and right move between segments, leaving the view past the first or last one,
+     * the center and enter keys select the focused segment
+     */
+    @Override
+    public boolean onKeyDown(int keyCode, KeyEvent event) {
+        if (isEnabled() && focusedIndex != -1) {
+            switch (keyCode) {
+                case KeyEvent.KEYCODE_DPAD_LEFT:
+                    if (focusedIndex > 0) {
+                        setFocusedIndex(focusedIndex - 1);
+                        return true;
+                    }
+                    break;
+                case KeyEvent.KEYCODE_DPAD_RIGHT:
+                    if (focusedIndex < selection.size() - 1) {
+                        setFocusedIndex(focusedIndex + 1);
+                        return true;
+                    }
+                    break;
+                case KeyEvent.KEYCODE_DPAD_CENTER:
+                case KeyEvent.KEYCODE_ENTER:
+                    return true;
+            }
+        }
+        return super.onKeyDown(keyCode, event);
+    }
+
+    @Override
+    public boolean onKeyUp(int keyCode, KeyEvent event) {
+        if (isEnabled() && focusedIndex != -1
+                && (keyCode == KeyEvent.KEYCODE_DPAD_CENTER || keyCode == KeyEvent.KEYCODE_ENTER)) {
+            playSoundEffect(SoundEffectConstants.CLICK);
+            selectFromUser(focusedIndex);
+            return true;
+        }
+        return super.onKeyUp(keyCode, event);
+    }
+
+    private void setFocusedIndex(int index) {
+        focusedIndex = index;
+        accessibilityHelper.sendEventForVirtualView(index, AccessibilityEvent.TYPE_VIEW_FOCUSED);
+        invalidate();
+    }
+
+    /**
+     * Selects a segment as if tapped, and reports the click to accessibility services
+     */
+    private void selectFromUser(int position) {
+        setValueFromUser(position);
+        accessibilityHelper.sendEventForVirtualView(position, AccessibilityEvent.TYPE_VIEW_CLICKED);
+    }
+
+    /**
+     * @return The segment containing the given point, or -1
+     */
+    private int findSegment(float x, float y) {
+        if (y < 0 || y > getHeight()) {
+            return -1;
+        }
+        final int count = selection.size();
+        for (int i = 0; i < count; i++) {
+            if (x >= segmentEdges[i] && x < segmentEdges[i + 1]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void setTouchedIndex(int index) {
+        if (touchedIndex != index) {
+            touchedIndex = index;
+            invalidate();
+        }
+    }
+
+    private int getContentWidth(int position) {
+        int width = textWidths[position];
+        Drawable icon = icons[position];
+        if (icon != null) {
+            width += icon.getIntrinsicWidth() + (width > 0 ? iconPadding : 0);
+        }
+        return width;
+    }
+
+    private void ensureLayouts() {
+        if (!layoutsDirty) {
+            return;
+        }
+        final int count = selection.size();
+        for (int i = 0; i < count; i++) {
+            int width = segmentEdges[i + 1] - segmentEdges[i] - 2 * horizontalPadding;
+            if (icons[i] != null) {
+                width -= icons[i].getIntrinsicWidth() + iconPadding;
+            }
+            width = Math.max(0, width);
+            CharSequence text = TextUtils.ellipsize(displayTexts[i], textPaint, width, TextUtils.TruncateAt.END);
+            layouts[i] = new StaticLayout(text, textPaint, width, Layout.Alignment.ALIGN_NORMAL, 1f, 0f, false);
+        }
+        layoutsDirty = false;
+    }
+
+    /**
+     * Picks up the shared palette, the same one {@link MultiStateToggleButton} uses
+     */
+    private void ensureColors() {
+        if (!colorsDirty) {
+            return;
+        }
+        TogglePalette palette = TogglePalette.obtain(context, this);
+        pressedBackground = palette.pressedBackground.newDrawable(getResources());
+        notPressedBackground = palette.notPressedBackground.newDrawable(getResources());
+        pressedTextColor = palette.getTextColor(true);
+        notPressedTextColor = palette.getTextColor(false);
+        strokePaint.setColor(palette.primaryColor);
+        colorsDirty = false;
+    }
+
+    /**
+     * @return The text read for a segment, its label or its position when it only has an icon
+     */
+    private CharSequence getSegmentDescription(int position) {
+        if (texts[position].length() > 0) {
+            return texts[position];
+        }
+        return getResources().getString(R.string.mstb_segment_description, position + 1, selection.size());
+    }
+
+    /**
+     * Exposes one virtual view per segment, checked when selected
+     */
+    private class SegmentAccessibilityHelper extends ExploreByTouchHelper {
+
+        private final Rect bounds = new Rect();
+
+        SegmentAccessibilityHelper() {
+            super(CanvasMultiStateToggleButton.this);
+        }
+
+        @Override
+        protected int getVirtualViewAt(float x, float y) {
+            final int position = findSegment(x, y);
+            return position != -1 ? position : INVALID_ID;
+        }
+
+        @Override
+        protected void getVisibleVirtualViews(List<Integer> virtualViewIds) {
+            for (int i = 0; i < selection.size(); i++) {
+                virtualViewIds.add(i);
+            }
+        }
+
+        @Override
+        protected void onPopulateEventForVirtualView(int virtualViewId, AccessibilityEvent event) {
+            if (virtualViewId >= selection.size()) {
+                // The elements changed since the event was requested
+                event.setContentDescription("");
+                return;
+            }
+            event.setClassName(Button.class.getName());
+            event.setContentDescription(getSegmentDescription(virtualViewId));
+            event.setChecked(selection.isSelected(virtualViewId));
+        }
+
+        @Override
+        protected void onPopulateNodeForVirtualView(int virtualViewId, AccessibilityNodeInfoCompat node) {
+            if (virtualViewId >= selection.size() || virtualViewId + 1 >= segmentEdges.length) {
+                node.setContentDescription("");
+                node.setBoundsInParent(bounds);
+                return;
+            }
+            final boolean selected = selection.isSelected(virtualViewId);
+            node.setClassName(Button.class.getName());
+            node.setContentDescription(getSegmentDescription(virtualViewId));
+            node.setCheckable(true);
+            node.setChecked(selected);
+            node.setSelected(selected);
+            node.setEnabled(isEnabled());
+            node.setClickable(isEnabled());
+            if (isEnabled()) {
+                node.addAction(AccessibilityNodeInfoCompat.ACTION_CLICK);
+            }
+            bounds.set(segmentEdges[virtualViewId], getPaddingTop(),
+                    segmentEdges[virtualViewId + 1], getHeight() - getPaddingBottom());
+            node.setBoundsInParent(bounds);
+        }
+
+        @Override
+        protected boolean onPerformActionForVirtualView(int virtualViewId, int action, Bundle arguments) {
+            if (action == AccessibilityNodeInfoCompat.ACTION_CLICK && isEnabled()
+                    && virtualViewId < selection.size()) {
+                selectFromUser(virtualViewId);
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package org.honorato.multistatetogglebutton;
+
+import android.content.Context;
+import android.content.res.ColorStateList;
+import android.content.res.Resources;
+import android.graphics.drawable.Drawable;
+import android.os.Build;
+import android.support.annotation.DrawableRes;
+import android.support.annotation.Nullable;
+import android.support.v4.content.ContextCompat;
+import android.support.v4.graphics.drawable.DrawableCompat;
+import android.support.v4.util.LruCache;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Segment icons shared by every toggle. Each resource is decoded once per theme and
+ * kept as a {@link Drawable.ConstantState}, toggles only create lightweight drawables
+ * from it, so rebinding rows with the same icons performs no decoding.
+ *
+ * Tinted icons are cached under their tint too: the icon is mutated and tinted once, and the
+ * drawables created from it share that tint. They must not be tinted again, obtain new ones
+ * when the tint changes. Tints are state lists, so selecting a segment recolors its icon
+ * without reloading it.
+ *
+ * Icons are cached per theme and must only be obtained from the main thread.
+ */
+final class IconCache {
+
+    /**
+     * Number of icons kept for each theme
+     */
+    private static final int MAX_SIZE = 64;
+
+    private static final Map<Resources.Theme, LruCache<Key, Drawable.ConstantState>> CACHE = new WeakHashMap<>();
+
+    private IconCache() {
+    }
+
+    /**
+     * @param tint the tint to apply, or null to keep the icon's own colors
+     * @return A new drawable for the icon, with its bounds set to its intrinsic size
+     */
+    static Drawable obtain(Context context, @DrawableRes int resourceId, @Nullable ColorStateList tint) {
+        Resources.Theme theme = context.getTheme();
+        LruCache<Key, Drawable.ConstantState> icons = CACHE.get(theme);
+        if (icons == null) {
+            icons = new LruCache<>(MAX_SIZE);
+            CACHE.put(theme, icons);
+        }
+        Key key = new Key(resourceId, tint);
+        Drawable.ConstantState state = icons.get(key);
+        Drawable icon;
+        if (state != null) {
+            icon = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+                    ? state.newDrawable(context.getResources(), theme)
+                    : state.newDrawable(context.getResources());
+        } else {
+            if (tint != null) {
+                // Tinted from the untinted icon, so that each resource is decoded only once
+                icon = obtain(context, resourceId, null);
+                // Wrapped so that the tint works on every API level
+                icon = DrawableCompat.wrap(icon.mutate());
+                DrawableCompat.setTintList(icon, tint);
+            } else {
+                icon = ContextCompat.getDrawable(context, resourceId);
+                ToggleMetrics.countDrawableLoad();
+            }
+            state = icon.getConstantState();
+            if (state != null) {
+                icons.put(key, state);
+            }
+        }
+        icon.setBounds(0, 0, icon.getIntrinsicWidth(), icon.getIntrinsicHeight());
+        return icon;
+    }
+
+    /**
+     * An icon resource with a tint, tints are compared by identity
+     */
+    private static final class Key {
+        final int resourceId;
+        final ColorStateList tint;
+
+        Key(int resourceId, @Nullable ColorStateList tint) {
+            this.resourceId = resourceId;
+            this.tint = tint;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return resourceId == other.resourceId && tint == other.tint;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * resourceId + System.identityHashCode(tint);
+        }
+    }
+}
@@ -2,17 +2,24 @@ package org.honorato.multistatetogglebutton;
 
 import android.content.Context;
 import android.content.res.TypedArray;
-import android.os.Bundle;
-import android.os.Parcelable;
+import android.graphics.Canvas;
+import android.graphics.Typeface;
+import android.graphics.drawable.Drawable;
 import android.support.annotation.Nullable;
-import android.support.v7.widget.AppCompatButton;
+import android.support.v4.view.ViewCompat;
+import android.text.TextUtils;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.Gravity;
 import android.view.LayoutInflater;
+import android.view.MotionEvent;
+import android.view.VelocityTracker;
 import android.view.View;
+import android.view.ViewConfiguration;
 import android.widget.Button;
 import android.widget.LinearLayout;
+import android.widget.OverScroller;
+import android.widget.TextView;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -21,8 +28,45 @@ public class MultiStateToggleButton extends ToggleButton {
 
     private static final String TAG = MultiStateToggleButton.class.getSimpleName();
 
-    private static final String KEY_BUTTON_STATES  = "button_states";
-    private static final String KEY_INSTANCE_STATE = "instance_state";
+    /**
+     * All buttons get the same width, filling the available space
+     */
+    public static final int SIZING_EQUAL = 0;
+
+    /**
+     * Buttons are as wide as their content
+     */
+    public static final int SIZING_WRAP = 1;
+
+    /**
+     * Buttons fill the available space, in proportion to their content
+     */
+    public static final int SIZING_PROPORTIONAL = 2;
+
+    /**
+     * Segments materialized on each side of the viewport while scrolling
+     */
+    private static final int OFFSCREEN_SEGMENTS = 1;
+
+    /**
+     * Idle buttons kept per shape when scrolling without a shared pool
+     */
+    private static final int SCRAP_PER_SHAPE = 4;
+
+    /**
+     * Bookkeeping attached to every segment view
+     */
+    static final class SegmentTag {
+        int role;
+        int index;
+        int iconResourceId;
+        TogglePalette palette;
+        /**
+         * Whether the palette was applied without background, for the sliding indicator.
+         * Pooled buttons move between toggles that may differ on that.
+         */
+        boolean indicatorStyle;
+    }
 
     /**
      * A list of rendered buttons. Used to get state, among others
@@ -32,161 +76,1229 @@ public class MultiStateToggleButton extends ToggleButton {
     /**
      * The specified texts
      */
-    CharSequence[]   texts;
+    CharSequence[]   texts;
+
+    /**
+     * The specified icons, may be null
+     */
+    int[] imageResourceIds;
+
+    /**
+     * Provides the texts and icons instead of the arrays above when set
+     */
+    private ToggleAdapter<?> adapter;
+
+    /**
+     * True if the buttons were given through {@link #setButtons(View[], boolean[])}
+     */
+    boolean customButtons = false;
+
+    /**
+     * If true, multiple buttons can be pressed at the same time
+     */
+    boolean mMultipleChoice = false;
+
+    /**
+     * How the width is distributed among buttons, one of the SIZING_* constants
+     */
+    private int sizingMode = SIZING_EQUAL;
+
+    /**
+     * Last measurement, reused while the constraints and buttons don't change
+     */
+    private int lastWidthMeasureSpec, lastHeightMeasureSpec, lastChildCount = -1, lastPadding;
+    private int lastMeasuredWidth, lastMeasuredHeight;
+    private boolean measureDirty = true;
+
+    /**
+     * Content widths gathered while measuring, one per child
+     */
+    private int[] contentWidths = new int[0];
+
+    /**
+     * Resolved colors and backgrounds, shared with other buttons configured alike
+     */
+    private TogglePalette palette;
+
+    /**
+     * Optional pool to take buttons from and give them back to
+     */
+    private SegmentViewPool segmentViewPool;
+
+    /**
+     * True when the buttons don't reflect the elements yet, they are bound on the next measure.
+     * Elements given before this view is attached, or while it's detached, only update the model.
+     */
+    private boolean bindPending = false;
+
+    private boolean attached = false;
+
+    /**
+     * Nesting level of {@link #beginUpdate()}, and the work postponed until the matching commit
+     */
+    private int updateDepth = 0;
+    private boolean restylePending = false;
+    private boolean statesPending = false;
+
+    /**
+     * In scrollable mode only the segments in or near the viewport have a button, the
+     * others are null in {@link #buttons}. Segments then share the same width.
+     */
+    private boolean scrollable = false;
+    private int segmentWidth;
+
+    /**
+     * Positions that currently have a button in scrollable mode, -1 if none
+     */
+    private int boundFirst = -1, boundLast = -1;
+
+    /**
+     * Buttons scrolled out of view, when there's no shared pool
+     */
+    private SegmentViewPool scrapPool;
+
+    /**
+     * In sliding indicator mode a single view showing the pressed background moves
+     * under the selected segment, the segments only change their text color
+     */
+    private boolean slidingIndicator = false;
+    private View indicator;
+    private Drawable indicatorTrack;
+
+    /**
+     * Bounds the indicator was last moved to, relative to the content
+     */
+    private int indicatorLeft = -1, indicatorWidth = -1;
+
+    private OverScroller scroller;
+    private VelocityTracker velocityTracker;
+    private int touchSlop, minimumFlingVelocity, maximumFlingVelocity;
+    private float lastMotionX;
+    private boolean dragging = false;
+
+    /**
+     * Shared by all segments, the position is read from the view's tag
+     */
+    private final View.OnClickListener segmentClickListener = new View.OnClickListener() {
+
+        @Override
+        public void onClick(View v) {
+            setValueFromUser(((SegmentTag) v.getTag(R.id.mstb_segment_tag)).index);
+        }
+
+    };
+
+    public MultiStateToggleButton(Context context) {
+        super(context, null);
+        init();
+    }
+
+    public MultiStateToggleButton(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        init();
+        TypedArray a = context.obtainStyledAttributes(attrs, R.styleable.MultiStateToggleButton, 0, 0);
+        try {
+            CharSequence[] texts = a.getTextArray(R.styleable.MultiStateToggleButton_values);
+            readColors(a);
+            sizingMode = a.getInt(R.styleable.MultiStateToggleButton_mstbSizingMode, SIZING_EQUAL);
+            scrollable = a.getBoolean(R.styleable.MultiStateToggleButton_mstbScrollable, false);
+            setSegmentWidth(a.getDimensionPixelSize(R.styleable.MultiStateToggleButton_mstbSegmentWidth, segmentWidth));
+            setSlidingIndicator(a.getBoolean(R.styleable.MultiStateToggleButton_mstbSlidingIndicator, false));
+
+            int length = 0;
+            if (texts != null) {
+                length = texts.length;
+            }
+            setElements(texts, null, new boolean[length]);
+        } finally {
+            a.recycle();
+        }
+    }
+
+    /**
+     * The buttons are hosted directly by this layout, which also draws the section outline
+     */
+    private void init() {
+        setOrientation(LinearLayout.HORIZONTAL);
+        setGravity(Gravity.CENTER_VERTICAL);
+        if (getBackground() == null) {
+            setBackgroundResource(R.drawable.button_section_shape);
+        }
+        segmentWidth = getResources().getDimensionPixelSize(R.dimen.button_scrollable_segment_width);
+        ViewConfiguration configuration = ViewConfiguration.get(context);
+        touchSlop = configuration.getScaledTouchSlop();
+        minimumFlingVelocity = configuration.getScaledMinimumFlingVelocity();
+        maximumFlingVelocity = configuration.getScaledMaximumFlingVelocity();
+    }
+
+    /**
+     * If multiple choice is enabled, the user can select multiple
+     * values simultaneously.
+     *
+     * @param enable
+     */
+    public void enableMultipleChoice(boolean enable) {
+        if (this.mMultipleChoice != enable) {
+            this.mMultipleChoice = enable;
+            if (slidingIndicator) {
+                // Several selected segments can't share the indicator, they get their own backgrounds
+                onIndicatorModeChanged();
+            }
+        }
+    }
+
+    /**
+     * In sliding indicator mode the pressed background is drawn once, by a view that slides
+     * under the selected segment when the selection changes. Segments only change their text
+     * color, so selecting needs no layout and no new drawables. Only used in single choice
+     * mode and with the buttons created by this view.
+     *
+     * @param enable true to slide an indicator instead of changing the segments' backgrounds
+     */
+    public void setSlidingIndicator(boolean enable) {
+        if (slidingIndicator == enable) {
+            return;
+        }
+        slidingIndicator = enable;
+        if (enable) {
+            indicator = new View(context);
+            indicator.setVisibility(INVISIBLE);
+            ViewCompat.setPivotX(indicator, 0);
+            ViewCompat.setImportantForAccessibility(indicator, ViewCompat.IMPORTANT_FOR_ACCESSIBILITY_NO);
+            addView(indicator);
+        } else {
+            removeView(indicator);
+            indicator = null;
+            indicatorTrack = null;
+        }
+        // The indicator is appended but drawn below the segments
+        setChildrenDrawingOrderEnabled(enable);
+        onIndicatorModeChanged();
+    }
+
+    public boolean hasSlidingIndicator() {
+        return slidingIndicator;
+    }
+
+    private boolean isIndicatorActive() {
+        return slidingIndicator && !mMultipleChoice && !customButtons;
+    }
+
+    /**
+     * Restyles every segment for the current indicator mode
+     */
+    private void onIndicatorModeChanged() {
+        for (int i = 0; this.buttons != null && i < this.buttons.size(); i++) {
+            View b = this.buttons.get(i);
+            SegmentTag tag = b != null ? (SegmentTag) b.getTag(R.id.mstb_segment_tag) : null;
+            if (tag != null) {
+                tag.palette = null;
+            }
+        }
+        onColorsChanged();
+        indicatorLeft = indicatorWidth = -1;
+        requestLayout();
+    }
+
+    @Override
+    protected int getChildDrawingOrder(int childCount, int i) {
+        final int indicatorIndex = indicator != null ? indexOfChild(indicator) : -1;
+        if (indicatorIndex == -1 || i > indicatorIndex) {
+            return i;
+        }
+        return i == 0 ? indicatorIndex : i - 1;
+    }
+
+    @Override
+    protected void dispatchDraw(Canvas canvas) {
+        if (indicatorTrack != null && isIndicatorActive()) {
+            // The released background, drawn once behind all the segments
+            final int left = getScrollX() + getPaddingLeft();
+            indicatorTrack.setBounds(left, getPaddingTop(),
+                    left + getWidth() - getPaddingLeft() - getPaddingRight(), getHeight() - getPaddingBottom());
+            indicatorTrack.draw(canvas);
+        }
+        super.dispatchDraw(canvas);
+    }
+
+    /**
+     * Sizes the indicator like the first segment, it's then scaled to fit the selected one
+     */
+    private void layoutIndicator() {
+        if (indicator == null) {
+            return;
+        }
+        final int top = getPaddingTop();
+        final int height = Math.max(0, getHeight() - top - getPaddingBottom());
+        int width = segmentWidth;
+        if (!isVirtualized()) {
+            View first = this.buttons != null && !this.buttons.isEmpty() ? this.buttons.get(0) : null;
+            width = first != null ? first.getMeasuredWidth() : 0;
+        }
+        if (indicator.getMeasuredWidth() != width || indicator.getMeasuredHeight() != height) {
+            indicator.measure(MeasureSpec.makeMeasureSpec(width, MeasureSpec.EXACTLY),
+                    MeasureSpec.makeMeasureSpec(height, MeasureSpec.EXACTLY));
+        }
+        indicator.layout(getPaddingLeft(), top, getPaddingLeft() + width, top + height);
+        updateIndicator(false);
+    }
+
+    /**
+     * Moves the indicator under the selected segment, hiding it if there's none
+     *
+     * @param animate true to slide it there, false to jump
+     */
+    private void updateIndicator(boolean animate) {
+        if (indicator == null) {
+            return;
+        }
+        final int position = selection.getValue();
+        int left = -1;
+        int width = 0;
+        if (isIndicatorActive() && position != -1 && indicator.getWidth() > 0) {
+            if (isVirtualized()) {
+                left = getPaddingLeft() + position * segmentWidth;
+                width = segmentWidth;
+            } else if (this.buttons != null && position < this.buttons.size()) {
+                View target = this.buttons.get(position);
+                left = target.getLeft();
+                width = target.getWidth();
+            }
+        }
+        if (width <= 0) {
+            ViewCompat.animate(indicator).cancel();
+            indicator.setVisibility(INVISIBLE);
+            indicatorLeft = indicatorWidth = -1;
+            return;
+        }
+        if (left == indicatorLeft && width == indicatorWidth) {
+            return;
+        }
+        final float translationX = left - indicator.getLeft();
+        final float scaleX = (float) width / indicator.getWidth();
+        if (animate && indicator.getVisibility() == VISIBLE) {
+            // Only the indicator's render properties change, on a hardware layer while it moves
+            ViewCompat.animate(indicator)
+                    .translationX(translationX)
+                    .scaleX(scaleX)
+                    .setDuration(getResources().getInteger(R.integer.indicator_animation_duration))
+                    .withLayer()
+                    .start();
+        } else {
+            ViewCompat.animate(indicator).cancel();
+            ViewCompat.setTranslationX(indicator, translationX);
+            ViewCompat.setScaleX(indicator, scaleX);
+            indicator.setVisibility(VISIBLE);
+        }
+        indicatorLeft = left;
+        indicatorWidth = width;
+    }
+
+    /**
+     * Changes how the available width is split among the buttons.
+     *
+     * @param mode one of {@link #SIZING_EQUAL}, {@link #SIZING_WRAP} or {@link #SIZING_PROPORTIONAL}
+     */
+    public void setSizingMode(int mode) {
+        if (mode != SIZING_EQUAL && mode != SIZING_WRAP && mode != SIZING_PROPORTIONAL) {
+            throw new IllegalArgumentException("Unknown sizing mode: " + mode);
+        }
+        if (sizingMode != mode) {
+            sizingMode = mode;
+            measureDirty = true;
+            requestLayout();
+        }
+    }
+
+    public int getSizingMode() {
+        return sizingMode;
+    }
+
+    /**
+     * In scrollable mode the segments keep their width and the user scrolls through them
+     * horizontally. Only the segments in or near the viewport have a button, which are
+     * recycled while scrolling, so the element count doesn't matter. Buttons given through
+     * {@link #setButtons(View[], boolean[])} are never virtualized.
+     *
+     * @param enable true to scroll through the elements instead of fitting them in the width
+     */
+    public void setScrollable(boolean enable) {
+        if (scrollable == enable) {
+            return;
+        }
+        if (this.buttons != null && !customButtons) {
+            // Segments are bound again for the new mode
+            for (int i = this.buttons.size() - 1; i >= 0; i--) {
+                removeSegmentAt(i, false);
+            }
+            bindPending = true;
+        }
+        scrollable = enable;
+        boundFirst = boundLast = -1;
+        scrollTo(0, 0);
+        measureDirty = true;
+        requestLayout();
+    }
+
+    public boolean isScrollable() {
+        return scrollable;
+    }
+
+    /**
+     * @param width the width of every segment in scrollable mode, in pixels
+     */
+    public void setSegmentWidth(int width) {
+        if (width <= 0) {
+            throw new IllegalArgumentException("Invalid segment width: " + width);
+        }
+        if (segmentWidth != width) {
+            segmentWidth = width;
+            requestLayout();
+        }
+    }
+
+    private boolean isVirtualized() {
+        return scrollable && !customButtons;
+    }
+
+    /**
+     * Measures the buttons in a single pass when the width is known, instead of
+     * the weighted double measurement of LinearLayout. Buttons are always as tall
+     * as this view.
+     */
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        final long start = ToggleMetrics.begin(ToggleMetrics.OP_MEASURE);
+        try {
+            measureSegments(widthMeasureSpec, heightMeasureSpec);
+        } finally {
+            ToggleMetrics.end(ToggleMetrics.OP_MEASURE, start);
+        }
+    }
+
+    private void measureSegments(int widthMeasureSpec, int heightMeasureSpec) {
+        if (isVirtualized()) {
+            measureVirtualized(widthMeasureSpec, heightMeasureSpec);
+            return;
+        }
+        if (bindPending) {
+            bindPending = false;
+            bindSegments(true);
+        }
+        final int count = getChildCount();
+        final int paddingHorizontal = getPaddingLeft() + getPaddingRight();
+        final int paddingVertical = getPaddingTop() + getPaddingBottom();
+        final int padding = paddingHorizontal * 31 + paddingVertical;
+        if (!measureDirty && widthMeasureSpec == lastWidthMeasureSpec && heightMeasureSpec == lastHeightMeasureSpec
+                && count == lastChildCount && padding == lastPadding && !isAnyChildLayoutRequested()) {
+            setMeasuredDimension(lastMeasuredWidth, lastMeasuredHeight);
+            return;
+        }
+
+        final int widthMode = MeasureSpec.getMode(widthMeasureSpec);
+        final int available = Math.max(0, MeasureSpec.getSize(widthMeasureSpec) - paddingHorizontal);
+        final int heightMode = MeasureSpec.getMode(heightMeasureSpec);
+        final int childHeightMeasureSpec = heightMode == MeasureSpec.EXACTLY
+                ? MeasureSpec.makeMeasureSpec(Math.max(0, MeasureSpec.getSize(heightMeasureSpec) - paddingVertical), MeasureSpec.EXACTLY)
+                : getChildMeasureSpec(heightMeasureSpec, paddingVertical, LayoutParams.WRAP_CONTENT);
+
+        if (contentWidths.length < count) {
+            contentWidths = new int[count];
+        }
+        int visibleCount = 0;
+        for (int i = 0; i < count; i++) {
+            if (isSegment(getChildAt(i))) {
+                visibleCount++;
+            }
+        }
+
+        // Equal shares of a known width don't need the content width at all
+        final boolean knownShares = sizingMode == SIZING_EQUAL && widthMode == MeasureSpec.EXACTLY;
+        // The content width of our own buttons comes from the shared cache instead of a measure pass
+        final boolean cachedContent = !customButtons;
+        int totalContent = 0;
+        int widestContent = 0;
+        if (!knownShares) {
+            final int unspecified = MeasureSpec.makeMeasureSpec(0, MeasureSpec.UNSPECIFIED);
+            for (int i = 0; i < count; i++) {
+                View child = getChildAt(i);
+                if (!isSegment(child)) {
+                    continue;
+                }
+                if (cachedContent) {
+                    contentWidths[i] = TextWidthCache.getContentWidth((TextView) child);
+                } else {
+                    child.measure(unspecified, childHeightMeasureSpec);
+                    contentWidths[i] = child.getMeasuredWidth();
+                }
+                totalContent += contentWidths[i];
+                widestContent = Math.max(widestContent, contentWidths[i]);
+            }
+        }
+
+        // Width of the row of buttons
+        int total;
+        if (widthMode == MeasureSpec.EXACTLY) {
+            total = available;
+        } else {
+            total = sizingMode == SIZING_EQUAL ? widestContent * visibleCount : totalContent;
+            if (widthMode == MeasureSpec.AT_MOST) {
+                total = Math.min(total, available);
+            }
+        }
+
+        int maxHeight = 0;
+        int shareIndex = 0;
+        int assigned = 0;
+        for (int i = 0; i < count; i++) {
+            View child = getChildAt(i);
+            if (!isSegment(child)) {
+                continue;
+            }
+            int width;
+            if (sizingMode == SIZING_EQUAL) {
+                width = total / visibleCount + (shareIndex < total % visibleCount ? 1 : 0);
+            } else if (sizingMode == SIZING_WRAP && totalContent <= total) {
+                width = contentWidths[i];
+            } else if (shareIndex == visibleCount - 1) {
+                // The last one absorbs the rounding error
+                width = total - assigned;
+            } else {
+                width = totalContent == 0 ? total / visibleCount : (int) ((long) contentWidths[i] * total / totalContent);
+            }
+            shareIndex++;
+            assigned += width;
+            if (knownShares || cachedContent || child.getMeasuredWidth() != width) {
+                child.measure(MeasureSpec.makeMeasureSpec(width, MeasureSpec.EXACTLY), childHeightMeasureSpec);
+            }
+            maxHeight = Math.max(maxHeight, child.getMeasuredHeight());
+        }
+
+        int width = resolveSize(Math.max(total + paddingHorizontal, getSuggestedMinimumWidth()), widthMeasureSpec);
+        int height = resolveSize(Math.max(maxHeight + paddingVertical, getSuggestedMinimumHeight()), heightMeasureSpec);
+
+        // Buttons fill the height, only the shorter ones are measured again
+        final int innerHeight = height - paddingVertical;
+        if (heightMode != MeasureSpec.EXACTLY) {
+            final int exactHeight = MeasureSpec.makeMeasureSpec(innerHeight, MeasureSpec.EXACTLY);
+            for (int i = 0; i < count; i++) {
+                View child = getChildAt(i);
+                if (isSegment(child) && child.getMeasuredHeight() != innerHeight) {
+                    child.measure(MeasureSpec.makeMeasureSpec(child.getMeasuredWidth(), MeasureSpec.EXACTLY), exactHeight);
+                }
+            }
+        }
+
+        setMeasuredDimension(width, height);
+        lastWidthMeasureSpec = widthMeasureSpec;
+        lastHeightMeasureSpec = heightMeasureSpec;
+        lastChildCount = count;
+        lastPadding = padding;
+        lastMeasuredWidth = width;
+        lastMeasuredHeight = height;
+        measureDirty = false;
+    }
+
+    /**
+     * Measures a scrollable toggle, as wide as all of its segments at most. Only the
+     * segments that fit in the resulting width are bound and measured.
+     */
+    private void measureVirtualized(int widthMeasureSpec, int heightMeasureSpec) {
+        final int paddingHorizontal = getPaddingLeft() + getPaddingRight();
+        final int paddingVertical = getPaddingTop() + getPaddingBottom();
+        final int contentWidth = selection.size() * segmentWidth;
+        final int width = resolveSize(Math.max(contentWidth + paddingHorizontal, getSuggestedMinimumWidth()), widthMeasureSpec);
+
+        bindPending = false;
+        bindWindow(width, true);
+
+        final int heightMode = MeasureSpec.getMode(heightMeasureSpec);
+        final int childWidthMeasureSpec = MeasureSpec.makeMeasureSpec(segmentWidth, MeasureSpec.EXACTLY);
+        final int childHeightMeasureSpec = heightMode == MeasureSpec.EXACTLY
+                ? MeasureSpec.makeMeasureSpec(Math.max(0, MeasureSpec.getSize(heightMeasureSpec) - paddingVertical), MeasureSpec.EXACTLY)
+                : getChildMeasureSpec(heightMeasureSpec, paddingVertical, LayoutParams.WRAP_CONTENT);
+        int maxHeight = 0;
+        for (int i = 0; i < getChildCount(); i++) {
+            View child = getChildAt(i);
+            if (!isSegment(child)) {
+                continue;
+            }
+            child.measure(childWidthMeasureSpec, childHeightMeasureSpec);
+            maxHeight = Math.max(maxHeight, child.getMeasuredHeight());
+        }
+        int height = resolveSize(Math.max(maxHeight + paddingVertical, getSuggestedMinimumHeight()), heightMeasureSpec);
+
+        final int innerHeight = height - paddingVertical;
+        if (heightMode != MeasureSpec.EXACTLY) {
+            final int exactHeight = MeasureSpec.makeMeasureSpec(innerHeight, MeasureSpec.EXACTLY);
+            for (int i = 0; i < getChildCount(); i++) {
+                View child = getChildAt(i);
+                if (isSegment(child) && child.getMeasuredHeight() != innerHeight) {
+                    child.measure(childWidthMeasureSpec, exactHeight);
+                }
+            }
+        }
+        setMeasuredDimension(width, height);
+    }
+
+    private boolean isSegment(View child) {
+        return child != indicator && child.getVisibility() != GONE;
+    }
+
+    private boolean isAnyChildLayoutRequested() {
+        for (int i = 0; i < getChildCount(); i++) {
+            if (getChildAt(i).isLayoutRequested()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    protected void onLayout(boolean changed, int l, int t, int r, int b) {
+        final long start = ToggleMetrics.begin(ToggleMetrics.OP_LAYOUT);
+        try {
+            layoutSegments();
+        } finally {
+            ToggleMetrics.end(ToggleMetrics.OP_LAYOUT, start);
+        }
+    }
+
+    private void layoutSegments() {
+        if (isVirtualized()) {
+            for (int i = boundFirst; i != -1 && i <= boundLast; i++) {
+                layoutSegment(i, false);
+            }
+            // The content may have shrunk since the last scroll
+            int maxScroll = getMaxScrollX();
+            if (getScrollX() > maxScroll) {
+                scrollTo(maxScroll, 0);
+            }
+        } else {
+            final int top = getPaddingTop();
+            int x = getPaddingLeft();
+            for (int i = 0; i < getChildCount(); i++) {
+                View child = getChildAt(i);
+                if (!isSegment(child)) {
+                    continue;
+                }
+                final int width = child.getMeasuredWidth();
+                child.layout(x, top, x + width, top + child.getMeasuredHeight());
+                x += width;
+            }
+        }
+        layoutIndicator();
+    }
+
+    /**
+     * Places the button of a position at its offset in the scrolled content
+     *
+     * @param measure true if the button must be measured first, e.g. it was just bound while scrolling
+     */
+    private void layoutSegment(int position, boolean measure) {
+        View child = this.buttons.get(position);
+        if (child == null) {
+            return;
+        }
+        final int top = getPaddingTop();
+        final int innerHeight = Math.max(0, getHeight() - top - getPaddingBottom());
+        if (measure) {
+            child.measure(MeasureSpec.makeMeasureSpec(segmentWidth, MeasureSpec.EXACTLY),
+                    MeasureSpec.makeMeasureSpec(innerHeight, MeasureSpec.EXACTLY));
+        }
+        final int left = getPaddingLeft() + position * segmentWidth;
+        child.layout(left, top, left + segmentWidth, top + child.getMeasuredHeight());
+    }
+
+    private int getMaxScrollX() {
+        return Math.max(0, selection.size() * segmentWidth + getPaddingLeft() + getPaddingRight() - getWidth());
+    }
+
+    @Override
+    protected int computeHorizontalScrollRange() {
+        if (isVirtualized()) {
+            return selection.size() * segmentWidth + getPaddingLeft() + getPaddingRight();
+        }
+        return super.computeHorizontalScrollRange();
+    }
+
+    @Override
+    protected void onScrollChanged(int l, int t, int oldl, int oldt) {
+        super.onScrollChanged(l, t, oldl, oldt);
+        if (isVirtualized() && getWidth() > 0) {
+            // Bind the segments scrolled into view, they don't go through a layout pass
+            bindWindow(getWidth(), true);
+            for (int i = boundFirst; i != -1 && i <= boundLast; i++) {
+                View child = this.buttons.get(i);
+                if (child != null && (child.isLayoutRequested() || child.getLeft() != getPaddingLeft() + i * segmentWidth)) {
+                    layoutSegment(i, true);
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean onInterceptTouchEvent(MotionEvent ev) {
+        if (!isVirtualized()) {
+            return super.onInterceptTouchEvent(ev);
+        }
+        trackVelocity(ev);
+        switch (ev.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+                lastMotionX = ev.getX();
+                // Catching a fling keeps on scrolling instead of clicking a segment
+                dragging = !getScroller().isFinished();
+                getScroller().abortAnimation();
+                break;
+            case MotionEvent.ACTION_MOVE:
+                if (!dragging && Math.abs(ev.getX() - lastMotionX) > touchSlop) {
+                    startDragging(ev);
+                }
+                break;
+            case MotionEvent.ACTION_UP:
+            case MotionEvent.ACTION_CANCEL:
+                stopDragging();
+                break;
+        }
+        return dragging;
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent ev) {
+        if (!isVirtualized()) {
+            return super.onTouchEvent(ev);
+        }
+        trackVelocity(ev);
+        switch (ev.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+                lastMotionX = ev.getX();
+                return true;
+            case MotionEvent.ACTION_MOVE:
+                if (!dragging && Math.abs(ev.getX() - lastMotionX) > touchSlop) {
+                    startDragging(ev);
+                }
+                if (dragging) {
+                    final float x = ev.getX();
+                    int scrollX = Math.max(0, Math.min(getMaxScrollX(), getScrollX() + (int) (lastMotionX - x)));
+                    lastMotionX = x;
+                    scrollTo(scrollX, 0);
+                }
+                return true;
+            case MotionEvent.ACTION_UP:
+                if (dragging) {
+                    velocityTracker.computeCurrentVelocity(1000, maximumFlingVelocity);
+                    int velocity = (int) velocityTracker.getXVelocity();
+                    if (Math.abs(velocity) > minimumFlingVelocity) {
+                        getScroller().fling(getScrollX(), 0, -velocity, 0, 0, getMaxScrollX(), 0, 0);
+                        ViewCompat.postInvalidateOnAnimation(this);
+                    }
+                }
+                stopDragging();
+                return true;
+            case MotionEvent.ACTION_CANCEL:
+                stopDragging();
+                return true;
+        }
+        return true;
+    }
+
+    @Override
+    public void computeScroll() {
+        if (scroller != null && scroller.computeScrollOffset()) {
+            scrollTo(scroller.getCurrX(), 0);
+            ViewCompat.postInvalidateOnAnimation(this);
+        }
+    }
+
+    private void startDragging(MotionEvent ev) {
+        dragging = true;
+        lastMotionX = ev.getX();
+        if (getParent() != null) {
+            getParent().requestDisallowInterceptTouchEvent(true);
+        }
+    }
+
+    private void stopDragging() {
+        dragging = false;
+        if (velocityTracker != null) {
+            velocityTracker.recycle();
+            velocityTracker = null;
+        }
+    }
+
+    private void trackVelocity(MotionEvent ev) {
+        if (velocityTracker == null) {
+            velocityTracker = VelocityTracker.obtain();
+        }
+        velocityTracker.addMovement(ev);
+    }
+
+    private OverScroller getScroller() {
+        if (scroller == null) {
+            scroller = new OverScroller(context);
+        }
+        return scroller;
+    }
+
+    /**
+     * Set the enabled state of this MultiStateToggleButton, including all of its child buttons.
+     *
+     * @param enabled True if this view is enabled, false otherwise.
+     */
+    @Override
+    public void setEnabled(boolean enabled) {
+        super.setEnabled(enabled);
+        for (int i = 0; i < getChildCount(); i++) {
+            View child = getChildAt(i);
+            child.setEnabled(enabled);
+        }
+    }
+
+    /**
+     * Set multiple buttons with the specified texts and default
+     * initial values. Initial states are allowed, but both
+     * arrays must be of the same size.
+     * Until this view is attached the elements are only recorded,
+     * the buttons are created on its first measure.
+     *
+     * @param texts            An array of CharSequences for the buttons
+     * @param imageResourceIds an optional icon to show, either text, icon or both needs to be set.
+     * @param selected         The default value for the buttons
+     */
+    public void setElements(@Nullable CharSequence[] texts, int[] imageResourceIds, boolean[] selected) {
+        final long start = ToggleMetrics.begin(ToggleMetrics.OP_SET_ELEMENTS);
+        try {
+            applyElements(texts, imageResourceIds, selected);
+        } finally {
+            ToggleMetrics.end(ToggleMetrics.OP_SET_ELEMENTS, start);
+        }
+    }
+
+    private void applyElements(@Nullable CharSequence[] texts, int[] imageResourceIds, boolean[] selected) {
+        releaseAdapter();
+        this.texts = texts;
+        final int textCount = texts != null ? texts.length : 0;
+        final int iconCount = imageResourceIds != null ? imageResourceIds.length : 0;
+        final int elementCount = Math.max(textCount, iconCount);
+        if (elementCount == 0) {
+            return;
+        }
+        this.imageResourceIds = imageResourceIds;
+        this.customButtons = false;
+
+        selection.setSize(elementCount);
+        if (selected != null && elementCount == selected.length) {
+            selection.setStates(selected);
+        }
+        onElementsChanged();
+    }
+
+    /**
+     * Binds the buttons to the new elements, right away if possible
+     */
+    private void onElementsChanged() {
+        if (attached && !bindPending && updateDepth == 0 && !isVirtualized()) {
+            bindSegments(false);
+        } else {
+            bindPending = true;
+            if (updateDepth == 0) {
+                requestLayout();
+            }
+        }
+    }
+
+    /**
+     * Shows the items of an adapter, replacing the current elements. Later changes are made
+     * through {@link ToggleAdapter#setItems(List)}, and elements can then be selected by id.
+     *
+     * @param adapter the adapter, or null to stop using the current one
+     */
+    public void setAdapter(@Nullable ToggleAdapter<?> adapter) {
+        if (adapter == this.adapter) {
+            return;
+        }
+        if (adapter != null) {
+            adapter.setToggle(this);
+        }
+        releaseAdapter();
+        if (adapter == null) {
+            return;
+        }
+        this.adapter = adapter;
+        this.texts = null;
+        this.imageResourceIds = null;
+        this.customButtons = false;
+        selection.setSize(adapter.getCount());
+        onElementsChanged();
+    }
+
+    @Nullable
+    public ToggleAdapter<?> getAdapter() {
+        return adapter;
+    }
+
+    private void releaseAdapter() {
+        if (adapter != null) {
+            adapter.setToggle(null);
+            adapter = null;
+        }
+    }
+
+    /**
+     * Called by the adapter when its items changed
+     *
+     * @param previousPositions for each new position, the previous position of the item or -1
+     */
+    void onItemsChanged(int[] previousPositions) {
+        selection.remap(previousPositions);
+        // Only the segments whose label, icon or state changed are updated
+        onElementsChanged();
+        onSelectionApplied();
+    }
 
     /**
-     * If true, multiple buttons can be pressed at the same time
+     * Selects the item with the given id, also in multiple choice mode where
+     * {@link #setValue(int)} would toggle it. Same as {@code setStateById(id, true)}.
+     *
+     * @return false if the adapter has no item with that id
      */
-    boolean mMultipleChoice = false;
+    public boolean setValueById(long id) {
+        return setStateById(id, true);
+    }
 
     /**
-     * The layout containing all buttons
+     * Selects or releases the item with the given id. In multiple choice mode the other items are
+     * left as they are. In single choice mode selecting moves the selection, and releasing clears it.
+     * Changes go through {@link #setValue(int)}, so the selection rules apply.
+     *
+     * @return false if the adapter has no item with that id
      */
-    private LinearLayout mainLayout;
-
-    public MultiStateToggleButton(Context context) {
-        super(context, null);
+    public boolean setStateById(long id, boolean selected) {
+        final int position = requireAdapter().getPosition(id);
+        if (position == -1) {
+            return false;
+        }
+        if (selection.isSelected(position) != selected) {
+            setValue(selected || mMultipleChoice ? position : -1);
+        }
+        return true;
     }
 
-    public MultiStateToggleButton(Context context, AttributeSet attrs) {
-        super(context, attrs);
-        TypedArray a = context.obtainStyledAttributes(attrs, R.styleable.MultiStateToggleButton, 0, 0);
-        try {
-            CharSequence[] texts = a.getTextArray(R.styleable.MultiStateToggleButton_values);
-            colorPressed = a.getColor(R.styleable.MultiStateToggleButton_mstbPrimaryColor, 0);
-            colorNotPressed = a.getColor(R.styleable.MultiStateToggleButton_mstbSecondaryColor, 0);
-            colorPressedText = a.getColor(R.styleable.MultiStateToggleButton_mstbColorPressedText, 0);
-            colorPressedBackground = a.getColor(R.styleable.MultiStateToggleButton_mstbColorPressedBackground, 0);
-            pressedBackgroundResource = a.getResourceId(R.styleable.MultiStateToggleButton_mstbColorPressedBackgroundResource, 0);
-            colorNotPressedText = a.getColor(R.styleable.MultiStateToggleButton_mstbColorNotPressedText, 0);
-            colorNotPressedBackground = a.getColor(R.styleable.MultiStateToggleButton_mstbColorNotPressedBackground, 0);
-            notPressedBackgroundResource = a.getResourceId(R.styleable.MultiStateToggleButton_mstbColorNotPressedBackgroundResource, 0);
+    public boolean isSelectedById(long id) {
+        final int position = requireAdapter().getPosition(id);
+        return position != -1 && selection.isSelected(position);
+    }
 
-            int length = 0;
-            if (texts != null) {
-                length = texts.length;
-            }
-            setElements(texts, null, new boolean[length]);
-        } finally {
-            a.recycle();
+    private ToggleAdapter<?> requireAdapter() {
+        if (adapter == null) {
+            throw new IllegalStateException("No adapter set");
         }
+        return adapter;
     }
 
     /**
-     * If multiple choice is enabled, the user can select multiple
-     * values simultaneously.
+     * Reconciles the buttons with the texts, icons and selection. Existing buttons
+     * are kept, only the ones whose shape (left, center, ...) changed are replaced.
      *
-     * @param enable
+     * @param inLayout true when called while measuring, no new layout is requested then
      */
-    public void enableMultipleChoice(boolean enable) {
-        this.mMultipleChoice = enable;
-    }
+    private void bindSegments(boolean inLayout) {
+        final int elementCount = selection.size();
+        if (this.buttons == null) {
+            this.buttons = new ArrayList<>(elementCount);
+        }
+        if (elementCount > 1 && hasEdgeSegments()) {
+            resizeCenterSegments(elementCount, inLayout);
+        }
 
-    @Override
-    public Parcelable onSaveInstanceState() {
-        Bundle bundle = new Bundle();
-        bundle.putParcelable(KEY_INSTANCE_STATE, super.onSaveInstanceState());
-        bundle.putBooleanArray(KEY_BUTTON_STATES, getStates());
-        return bundle;
+        // Drop the trailing segments that are no longer needed
+        for (int i = this.buttons.size() - 1; i >= elementCount; i--) {
+            removeSegmentAt(i, inLayout);
+        }
+
+        for (int i = 0; i < elementCount; i++) {
+            final int role = SegmentViewPool.getSegmentRole(i, elementCount);
+            View existing = i < this.buttons.size() ? this.buttons.get(i) : null;
+            SegmentTag tag = existing != null ? (SegmentTag) existing.getTag(R.id.mstb_segment_tag) : null;
+
+            Button b;
+            if (tag != null && tag.role == role) {
+                b = (Button) existing;
+                // The right edge moves when center segments are added or removed
+                tag.index = i;
+            } else {
+                if (existing != null) {
+                    removeSegmentAt(i, inLayout);
+                }
+                b = obtainSegment(role, i);
+                tag = (SegmentTag) b.getTag(R.id.mstb_segment_tag);
+                this.buttons.add(i, b);
+                if (inLayout) {
+                    addViewInLayout(b, i, b.getLayoutParams(), true);
+                } else {
+                    addView(b, i);
+                }
+            }
+
+            bindContent(b, tag, i);
+        }
     }
 
-    @Override
-    public void onRestoreInstanceState(Parcelable state) {
-        if (state instanceof Bundle) {
-            Bundle bundle = (Bundle) state;
-            setStates(bundle.getBooleanArray(KEY_BUTTON_STATES));
-            state = bundle.getParcelable(KEY_INSTANCE_STATE);
+    /**
+     * @return true if the current segments start with a left edge and end with a right edge
+     */
+    private boolean hasEdgeSegments() {
+        final int count = this.buttons.size();
+        if (count < 2) {
+            return false;
         }
-        super.onRestoreInstanceState(state);
+        return getSegmentRoleAt(0) == SegmentViewPool.SEGMENT_LEFT
+                && getSegmentRoleAt(count - 1) == SegmentViewPool.SEGMENT_RIGHT;
     }
 
     /**
-     * Set the enabled state of this MultiStateToggleButton, including all of its child buttons.
-     *
-     * @param enabled True if this view is enabled, false otherwise.
+     * @return The shape of the button at the given index, or -1 if it has none
      */
-    @Override
-    public void setEnabled(boolean enabled) {
-        for (int i = 0; i < getChildCount(); i++) {
-            View child = getChildAt(i);
-            child.setEnabled(enabled);
+    private int getSegmentRoleAt(int index) {
+        View view = this.buttons.get(index);
+        SegmentTag tag = view != null ? (SegmentTag) view.getTag(R.id.mstb_segment_tag) : null;
+        return tag != null ? tag.role : -1;
+    }
+
+    /**
+     * Adds or removes center segments right before the right edge, so that a new element
+     * count only creates or drops the segments it adds or removes. Both edges keep their buttons.
+     */
+    private void resizeCenterSegments(int elementCount, boolean inLayout) {
+        while (this.buttons.size() > elementCount) {
+            removeSegmentAt(this.buttons.size() - 2, inLayout);
+        }
+        while (this.buttons.size() < elementCount) {
+            final int index = this.buttons.size() - 1;
+            Button b = obtainSegment(SegmentViewPool.SEGMENT_CENTER, index);
+            this.buttons.add(index, b);
+            if (inLayout) {
+                addViewInLayout(b, index, b.getLayoutParams(), true);
+            } else {
+                addView(b, index);
+            }
         }
     }
 
     /**
-     * Set multiple buttons with the specified texts and default
-     * initial values. Initial states are allowed, but both
-     * arrays must be of the same size.
+     * Scrollable version of {@link #bindSegments(boolean)}: only the positions in or near
+     * the viewport get a button, the ones that left it are recycled.
      *
-     * @param texts            An array of CharSequences for the buttons
-     * @param imageResourceIds an optional icon to show, either text, icon or both needs to be set.
-     * @param selected         The default value for the buttons
+     * @param viewWidth the width of the viewport
+     * @param inLayout  true when called while measuring or scrolling, no new layout is requested then
      */
-    public void setElements(@Nullable CharSequence[] texts, int[] imageResourceIds, boolean[] selected) {
-        this.texts = texts;
-        final int textCount = texts != null ? texts.length : 0;
-        final int iconCount = imageResourceIds != null ? imageResourceIds.length : 0;
-        final int elementCount = Math.max(textCount, iconCount);
-        if (elementCount == 0) {
-            return;
+    private void bindWindow(int viewWidth, boolean inLayout) {
+        final int elementCount = selection.size();
+        if (this.buttons == null) {
+            this.buttons = new ArrayList<>(elementCount);
         }
-
-        boolean enableDefaultSelection = true;
-        if (selected == null || elementCount != selected.length) {
-            enableDefaultSelection = false;
+        for (int i = this.buttons.size() - 1; i >= elementCount; i--) {
+            removeSegmentAt(i, inLayout);
+        }
+        while (this.buttons.size() < elementCount) {
+            this.buttons.add(null);
         }
 
-        setOrientation(LinearLayout.HORIZONTAL);
-        setGravity(Gravity.CENTER_VERTICAL);
+        int first = -1;
+        int last = -1;
+        if (elementCount > 0) {
+            final int offset = Math.max(0, getScrollX() - getPaddingLeft());
+            first = Math.max(0, offset / segmentWidth - OFFSCREEN_SEGMENTS);
+            last = Math.min(elementCount - 1, (offset + viewWidth) / segmentWidth + OFFSCREEN_SEGMENTS);
+        }
 
-        LayoutInflater inflater = (LayoutInflater) context
-                .getSystemService(Context.LAYOUT_INFLATER_SERVICE);
-        if (mainLayout == null) {
-            mainLayout = (LinearLayout) inflater.inflate(R.layout.view_multi_state_toggle_button, this, true);
+        // Recycle what left the window, then bind what's in it
+        for (int i = boundFirst; i != -1 && i <= boundLast && i < elementCount; i++) {
+            if (i < first || i > last) {
+                recycleSegmentAt(i, inLayout);
+            }
         }
-        mainLayout.removeAllViews();
+        for (int i = first; i != -1 && i <= last; i++) {
+            final int role = SegmentViewPool.getSegmentRole(i, elementCount);
+            View existing = this.buttons.get(i);
+            SegmentTag tag = existing != null ? (SegmentTag) existing.getTag(R.id.mstb_segment_tag) : null;
 
-        this.buttons = new ArrayList<>(elementCount);
-        for (int i = 0; i < elementCount; i++) {
             Button b;
-            if (i == 0) {
-                // Add a special view when there's only one element
-                if (elementCount == 1) {
-                    b = (Button) inflater.inflate(R.layout.view_single_toggle_button, mainLayout, false);
+            if (tag != null && tag.role == role) {
+                b = (Button) existing;
+            } else {
+                recycleSegmentAt(i, inLayout);
+                b = obtainSegment(role, i);
+                tag = (SegmentTag) b.getTag(R.id.mstb_segment_tag);
+                this.buttons.set(i, b);
+                if (inLayout) {
+                    addViewInLayout(b, -1, b.getLayoutParams(), true);
                 } else {
-                    b = (Button) inflater.inflate(R.layout.view_left_toggle_button, mainLayout, false);
+                    addView(b);
                 }
-            } else if (i == elementCount - 1) {
-                b = (Button) inflater.inflate(R.layout.view_right_toggle_button, mainLayout, false);
-            } else {
-                b = (Button) inflater.inflate(R.layout.view_center_toggle_button, mainLayout, false);
             }
-            b.setText(texts != null ? texts[i] : "");
-            if (imageResourceIds != null && imageResourceIds[i] != 0) {
-                b.setCompoundDrawablesWithIntrinsicBounds(imageResourceIds[i], 0, 0, 0);
+            bindContent(b, tag, i);
+        }
+        boundFirst = first;
+        boundLast = last;
+    }
+
+    /**
+     * Shows the text, icon and state of a position on its button
+     */
+    private void bindContent(Button b, SegmentTag tag, int position) {
+        CharSequence text;
+        int iconResourceId;
+        if (adapter != null) {
+            text = adapter.getLabelAt(position);
+            iconResourceId = adapter.getIconResourceIdAt(position);
+        } else {
+            text = texts != null && position < texts.length ? texts[position] : "";
+            iconResourceId = imageResourceIds != null && position < imageResourceIds.length ? imageResourceIds[position] : 0;
+        }
+        if (!TextUtils.equals(b.getText(), text)) {
+            b.setText(text);
+        }
+        if (tag.iconResourceId != iconResourceId) {
+            b.setCompoundDrawablesWithIntrinsicBounds(
+                    iconResourceId != 0 ? IconCache.obtain(context, iconResourceId, iconTint) : null, null, null, null);
+            tag.iconResourceId = iconResourceId;
+        }
+        b.setSelected(selection.isSelected(position));
+        ToggleMetrics.countStateApplication();
+    }
+
+    /**
+     * @return A button for the given shape, from the pool if there's one
+     */
+    private Button obtainSegment(int role, int position) {
+        View b;
+        SegmentViewPool pool = getPool();
+        if (pool != null) {
+            b = pool.obtain(role);
+        } else {
+            b = LayoutInflater.from(context).inflate(SegmentViewPool.getLayout(role), this, false);
+            ToggleMetrics.countInflation();
+        }
+        attachSegment(b, role, position);
+        b.setEnabled(isEnabled());
+        return (Button) b;
+    }
+
+    /**
+     * Removes a button, giving it back to the pool if there's one
+     */
+    private void removeSegmentAt(int index, boolean inLayout) {
+        releaseSegment(this.buttons.remove(index), inLayout);
+    }
+
+    /**
+     * Same as {@link #removeSegmentAt(int, boolean)}, but leaves the position empty
+     */
+    private void recycleSegmentAt(int index, boolean inLayout) {
+        releaseSegment(this.buttons.set(index, null), inLayout);
+    }
+
+    private void releaseSegment(View b, boolean inLayout) {
+        if (b == null) {
+            return;
+        }
+        if (inLayout) {
+            removeViewInLayout(b);
+        } else {
+            removeView(b);
+        }
+        SegmentTag tag = (SegmentTag) b.getTag(R.id.mstb_segment_tag);
+        SegmentViewPool pool = getPool();
+        if (pool != null && tag != null && tag.role != SegmentViewPool.SEGMENT_CUSTOM) {
+            b.setOnClickListener(null);
+            b.setSelected(false);
+            if (tag.iconResourceId != 0) {
+                // The icon is tinted for this toggle, the next one gets its own from the cache
+                ((TextView) b).setCompoundDrawables(null, null, null, null);
+                tag.iconResourceId = 0;
             }
-            final int position = i;
-            b.setOnClickListener(new View.OnClickListener() {
+            pool.release(tag.role, b);
+        }
+    }
 
-                @Override
-                public void onClick(View v) {
-                    setValue(position);
-                }
+    /**
+     * @return The shared pool, or a private one while scrolling without it
+     */
+    private SegmentViewPool getPool() {
+        if (segmentViewPool != null || !isVirtualized()) {
+            return segmentViewPool;
+        }
+        if (scrapPool == null) {
+            scrapPool = new SegmentViewPool(context, SCRAP_PER_SHAPE);
+        }
+        return scrapPool;
+    }
 
-            });
-            mainLayout.addView(b);
-            if (enableDefaultSelection) {
-                setButtonState(b, selected[i]);
+    /**
+     * Tags the view with its position and hooks up the shared click listener
+     */
+    private void attachSegment(View view, int role, int position) {
+        SegmentTag tag = (SegmentTag) view.getTag(R.id.mstb_segment_tag);
+        if (tag == null) {
+            tag = new SegmentTag();
+            view.setTag(R.id.mstb_segment_tag, tag);
+        }
+        tag.role = role;
+        tag.index = position;
+        view.setOnClickListener(segmentClickListener);
+        if (view instanceof TextView) {
+            TextView textView = (TextView) view;
+            textView.setTypeface(textView.getTypeface(), Typeface.BOLD);
+        }
+        applyPalette(view);
+    }
+
+    /**
+     * Shares buttons with other toggles through the given pool, e.g. all the toggles
+     * of a RecyclerView. Buttons go back to the pool when they are removed or when this
+     * view is detached, and are taken from it again on the next measure.
+     * Set the pool before the elements, so that the first buttons come from it.
+     *
+     * @param pool the pool to use, or null to stop pooling
+     */
+    public void setSegmentViewPool(@Nullable SegmentViewPool pool) {
+        this.segmentViewPool = pool;
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        attached = true;
+        if (bindPending) {
+            requestLayout();
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        attached = false;
+        if (segmentViewPool != null && !customButtons && this.buttons != null && !this.buttons.isEmpty()) {
+            for (int i = this.buttons.size() - 1; i >= 0; i--) {
+                removeSegmentAt(i, true);
             }
-            this.buttons.add(b);
+            boundFirst = boundLast = -1;
+            bindPending = true;
         }
-        mainLayout.setBackgroundResource(R.drawable.button_section_shape);
     }
 
     /**
      * @return An array of the buttons' text
      */
     public CharSequence[] getTexts() {
+        if (adapter != null) {
+            CharSequence[] labels = new CharSequence[adapter.getCount()];
+            for (int i = 0; i < labels.length; i++) {
+                labels[i] = adapter.getLabelAt(i);
+            }
+            return labels;
+        }
         return this.texts;
     }
 
@@ -199,10 +1311,20 @@ public class MultiStateToggleButton extends ToggleButton {
      * @param selected The default value for the buttons
      */
     public void setButtons(View[] buttons, boolean[] selected) {
+        final long start = ToggleMetrics.begin(ToggleMetrics.OP_SET_BUTTONS);
+        try {
+            applyButtons(buttons, selected);
+        } finally {
+            ToggleMetrics.end(ToggleMetrics.OP_SET_BUTTONS, start);
+        }
+    }
+
+    private void applyButtons(View[] buttons, boolean[] selected) {
         final int elementCount = buttons.length;
         if (elementCount == 0) {
             return;
         }
+        releaseAdapter();
 
         boolean enableDefaultSelection = true;
         if (selected == null || elementCount != selected.length) {
@@ -210,35 +1332,38 @@ public class MultiStateToggleButton extends ToggleButton {
             enableDefaultSelection = false;
         }
 
-        setOrientation(LinearLayout.HORIZONTAL);
-        setGravity(Gravity.CENTER_VERTICAL);
+        if (this.buttons == null) {
+            this.buttons = new ArrayList<>(elementCount);
+        }
 
-        LayoutInflater inflater = (LayoutInflater) context
-                .getSystemService(Context.LAYOUT_INFLATER_SERVICE);
-        if (mainLayout == null) {
-            mainLayout = (LinearLayout) inflater.inflate(R.layout.view_multi_state_toggle_button, this, true);
+        // Keep the leading views that are still in place and replace the rest
+        final int previousCount = this.buttons.size();
+        int firstChanged = 0;
+        while (firstChanged < previousCount && firstChanged < elementCount
+                && this.buttons.get(firstChanged) == buttons[firstChanged]) {
+            firstChanged++;
         }
-        mainLayout.removeAllViews();
+        for (int i = previousCount - 1; i >= firstChanged; i--) {
+            removeSegmentAt(i, false);
+        }
+        selection.setSize(elementCount);
+        customButtons = true;
+        bindPending = false;
 
-        this.buttons = new ArrayList<>();
         for (int i = 0; i < elementCount; i++) {
             View b = buttons[i];
-            final int position = i;
-            b.setOnClickListener(new View.OnClickListener() {
-
-                @Override
-                public void onClick(View v) {
-                    setValue(position);
-                }
-
-            });
-            mainLayout.addView(b);
+            if (i >= firstChanged) {
+                attachSegment(b, SegmentViewPool.SEGMENT_CUSTOM, i);
+                addView(b);
+                this.buttons.add(b);
+            }
             if (enableDefaultSelection) {
                 setButtonState(b, selected[i]);
+            } else {
+                // Custom views keep whatever state they were given
+                selection.set(i, b.isSelected());
             }
-            this.buttons.add(b);
         }
-        mainLayout.setBackgroundResource(R.drawable.button_section_shape);
     }
 
     public void setElements(CharSequence[] elements) {
@@ -269,8 +1394,7 @@ public class MultiStateToggleButton extends ToggleButton {
         if (texts == null) {
             texts = new ArrayList<>(0);
         }
-        int size = texts.size();
-        setElements(texts.toArray(new String[size]), null, selected);
+        setElements(toTexts(texts), null, selected);
     }
 
     public void setElements(int arrayResourceId, int selectedPosition) {
@@ -292,95 +1416,260 @@ public class MultiStateToggleButton extends ToggleButton {
         setElements(this.getResources().getStringArray(arrayResourceId), null, selected);
     }
 
+    /**
+     * Selects or releases a button. Its look is driven by the selected state,
+     * see {@link #applyPalette(View)}.
+     *
+     * @param button   the button to update
+     * @param selected the new state
+     */
     public void setButtonState(View button, boolean selected) {
         if (button == null) {
             return;
         }
+        SegmentTag tag = (SegmentTag) button.getTag(R.id.mstb_segment_tag);
+        if (tag == null) {
+            // Not one of ours, give it the same look as the segments
+            applyPalette(button);
+        } else if (tag.index < selection.size() && tag.index < buttons.size() && buttons.get(tag.index) == button) {
+            selection.set(tag.index, selected);
+        }
         button.setSelected(selected);
-        button.setBackgroundResource(selected ? R.drawable.button_pressed : R.drawable.button_not_pressed);
-        if (colorPressed != 0 || colorNotPressed != 0) {
-            button.setBackgroundColor(selected ? colorPressed : colorNotPressed);
-        } else if (colorPressedBackground != 0 || colorNotPressedBackground != 0) {
-          button.setBackgroundColor(selected ? colorPressedBackground : colorNotPressedBackground);
+        ToggleMetrics.countStateApplication();
+    }
+
+    /**
+     * Updates the selection, and the button if it's currently bound
+     */
+    private void setSegmentState(int index, boolean selected) {
+        selection.set(index, selected);
+        if (updateDepth > 0) {
+            statesPending = true;
+        } else if (this.buttons != null && index < this.buttons.size() && this.buttons.get(index) != null) {
+            this.buttons.get(index).setSelected(selected);
+            ToggleMetrics.countStateApplication();
         }
-        if (button instanceof Button) {
-            int style = selected ? R.style.WhiteBoldText : R.style.PrimaryNormalText;
-            ((AppCompatButton) button).setTextAppearance(this.getContext(), style);
-            if (colorPressed != 0 || colorNotPressed != 0) {
-                ((AppCompatButton) button).setTextColor(!selected ? colorPressed : colorNotPressed);
-            } 
-            if (colorPressedText != 0 || colorNotPressedText != 0) {
-              ((AppCompatButton) button).setTextColor(selected ? colorPressedText : colorNotPressedText);
-            }
-            if (pressedBackgroundResource != 0 || notPressedBackgroundResource != 0) {
-              button.setBackgroundResource(selected ? pressedBackgroundResource : notPressedBackgroundResource);
+    }
+
+    /**
+     * Sets the shared state list background and text colors, after this
+     * selecting or releasing the button is a plain {@link View#setSelected(boolean)}.
+     */
+    @SuppressWarnings("deprecation")
+    private void applyPalette(View button) {
+        if (palette == null) {
+            palette = TogglePalette.obtain(context, this);
+        }
+        SegmentTag tag = (SegmentTag) button.getTag(R.id.mstb_segment_tag);
+        final boolean indicatorStyle = tag != null && isIndicatorActive();
+        if (tag != null) {
+            if (tag.palette == palette && tag.indicatorStyle == indicatorStyle) {
+                return;
             }
+            tag.palette = palette;
+            tag.indicatorStyle = indicatorStyle;
+        }
+        if (indicatorStyle) {
+            button.setBackgroundDrawable(null);
+        } else {
+            button.setBackgroundDrawable(palette.newBackground(getResources()));
+        }
+        if (button instanceof TextView) {
+            ((TextView) button).setTextColor(palette.textColors);
         }
     }
 
+    /**
+     * @return The first selected position, or -1 if nothing is selected
+     */
     public int getValue() {
-        for (int i = 0; i < this.buttons.size(); i++) {
-            if (buttons.get(i).isSelected()) {
-                return i;
-            }
-        }
-        return -1;
+        return selection.getValue();
     }
 
     public void setValue(int position) {
-        for (int i = 0; i < this.buttons.size(); i++) {
-            if (mMultipleChoice) {
-                if (i == position) {
-                    View b = buttons.get(i);
-                    if (b != null) {
-                        setButtonState(b, !b.isSelected());
-                    }
-                }
-            } else {
-                if (i == position) {
-                    setButtonState(buttons.get(i), true);
-                } else if (!mMultipleChoice) {
-                    setButtonState(buttons.get(i), false);
-                }
-            }
+        final long start = ToggleMetrics.begin(ToggleMetrics.OP_SET_VALUE);
+        try {
+            applyValue(position);
+        } finally {
+            ToggleMetrics.end(ToggleMetrics.OP_SET_VALUE, start);
+        }
+    }
+
+    private void applyValue(int position) {
+        final boolean inRange = position >= 0 && position < selection.size();
+        if (delta.computeValue(selection, position, mMultipleChoice, selectionRules)) {
+            applyDelta();
+            notifySelectionChanged(inRange ? position : INDEX_MULTIPLE);
+        } else if (delta.isRejected()) {
+            return;
         }
         super.setValue(position);
     }
 
     public boolean[] getStates() {
-        int size = this.buttons == null ? 0 : this.buttons.size();
-        boolean[] result = new boolean[size];
-        for (int i = 0; i < size; i++) {
-            result[i] = this.buttons.get(i).isSelected();
-        }
-        return result;
+        return selection.getStates(null);
+    }
+
+    /**
+     * Same as {@link #getStates()}, but reuses the given array when its length matches
+     *
+     * @param into an array to fill, may be null
+     * @return The filled array
+     */
+    public boolean[] getStates(boolean[] into) {
+        return selection.getStates(into);
+    }
+
+    /**
+     * @return The state of the first 64 buttons as a bitmask, the first button being the lowest bit
+     */
+    public long getSelectionMask() {
+        return selection.getMask();
+    }
+
+    /**
+     * @return true if the given states match the current selection, without allocating
+     */
+    public boolean isSelectionEqual(boolean[] states) {
+        return selection.contentEquals(states);
     }
 
+    @Override
     public void setStates(boolean[] selected) {
-        if (this.buttons == null || selected == null ||
-                this.buttons.size() != selected.length) {
+        final long start = ToggleMetrics.begin(ToggleMetrics.OP_SET_STATES);
+        try {
+            applyStates(selected);
+        } finally {
+            ToggleMetrics.end(ToggleMetrics.OP_SET_STATES, start);
+        }
+    }
+
+    private void applyStates(boolean[] selected) {
+        if (delta.computeStates(selection, selected)) {
+            applyDelta();
+            notifySelectionChanged(delta.getChangedIndex());
+        }
+    }
+
+    /**
+     * Flips the positions of the computed delta, only their buttons are touched
+     */
+    private void applyDelta() {
+        for (int i = delta.nextChanged(0); i != -1; i = delta.nextChanged(i + 1)) {
+            setSegmentState(i, !selection.isSelected(i));
+        }
+        onSelectionApplied();
+    }
+
+    /**
+     * Slides the indicator to the new selection, unless in a batch
+     */
+    private void onSelectionApplied() {
+        if (updateDepth == 0) {
+            updateIndicator(true);
+        }
+    }
+
+    @Override
+    void onIconTintChanged() {
+        if (this.buttons == null || customButtons) {
             return;
         }
-        int count = 0;
+        // Cached icons share their tint, each button gets a new one instead of tinting its own
         for (View b : this.buttons) {
-            setButtonState(b, selected[count]);
-            count++;
+            SegmentTag tag = b != null ? (SegmentTag) b.getTag(R.id.mstb_segment_tag) : null;
+            if (tag != null && tag.iconResourceId != 0) {
+                ((TextView) b).setCompoundDrawables(IconCache.obtain(context, tag.iconResourceId, iconTint), null, null, null);
+            }
+        }
+    }
+
+    @Override
+    void onColorsChanged() {
+        palette = null;
+        if (updateDepth > 0) {
+            restylePending = true;
+        } else {
+            refresh();
         }
     }
 
     /**
-     * {@inheritDoc}
+     * Starts a batch of changes: elements, states, colors and backgrounds set until the
+     * matching {@link #commitUpdate()} are only recorded, and applied together in a single
+     * rebuild, restyle and invalidate. Batches can be nested.
      */
-    @Override
-    public void setColors(int colorPressed, int colorNotPressed) {
-        super.setColors(colorPressed, colorNotPressed);
-        refresh();
+    public void beginUpdate() {
+        updateDepth++;
+    }
+
+    /**
+     * Applies the changes recorded since {@link #beginUpdate()}
+     */
+    public void commitUpdate() {
+        if (updateDepth == 0) {
+            throw new IllegalStateException("commitUpdate() called without beginUpdate()");
+        }
+        if (--updateDepth > 0) {
+            return;
+        }
+        if (bindPending) {
+            if (attached && !isVirtualized()) {
+                // Binding also applies the selection and palette to the new buttons
+                bindPending = false;
+                statesPending = false;
+                bindSegments(false);
+            } else {
+                // Scrollable toggles only bind the segments in view, when laid out
+                requestLayout();
+            }
+        }
+        if (statesPending) {
+            statesPending = false;
+            for (int i = 0; this.buttons != null && i < this.buttons.size(); i++) {
+                if (this.buttons.get(i) != null) {
+                    this.buttons.get(i).setSelected(selection.isSelected(i));
+                    ToggleMetrics.countStateApplication();
+                }
+            }
+        }
+        if (restylePending) {
+            restylePending = false;
+            refresh();
+        }
+        updateIndicator(true);
+        invalidate();
     }
 
+    /**
+     * Re-applies the palette to the buttons that don't have the current one
+     */
     private void refresh() {
-        boolean[] states = getStates();
-        for (int i = 0; i < states.length; i++) {
-            setButtonState(buttons.get(i), states[i]);
+        final long start = ToggleMetrics.begin(ToggleMetrics.OP_REFRESH);
+        try {
+            restyleSegments();
+        } finally {
+            ToggleMetrics.end(ToggleMetrics.OP_REFRESH, start);
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private void restyleSegments() {
+        if (indicator != null) {
+            if (palette == null) {
+                palette = TogglePalette.obtain(context, this);
+            }
+            indicator.setBackgroundDrawable(palette.pressedBackground.newDrawable(getResources()));
+            indicatorTrack = palette.notPressedBackground.newDrawable(getResources());
+            invalidate();
+        }
+        if (this.buttons == null) {
+            return;
+        }
+        for (int i = 0; i < this.buttons.size(); i++) {
+            if (buttons.get(i) != null) {
+                applyPalette(buttons.get(i));
+            }
         }
     }
 }
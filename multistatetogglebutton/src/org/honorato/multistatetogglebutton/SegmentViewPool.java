@@ -0,0 +1,205 @@
+package org.honorato.multistatetogglebutton;
+
+import android.content.Context;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.widget.LinearLayout;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A pool of segment buttons shared by many {@link MultiStateToggleButton}s, e.g. all the
+ * toggles of a RecyclerView. Toggles using a pool take their buttons from it and give them
+ * back when segments are removed or the toggle is detached, so binding rows performs no
+ * inflation once the pool is warm.
+ *
+ * Buttons are inflated with the pool's context, use the Activity hosting the toggles.
+ * Pools must only be used from the main thread.
+ */
+public class SegmentViewPool {
+
+    /**
+     * Segment shapes, a pooled button can only be reused for the same shape
+     */
+    static final int SEGMENT_CUSTOM = 0;
+    static final int SEGMENT_LEFT   = 1;
+    static final int SEGMENT_CENTER = 2;
+    static final int SEGMENT_RIGHT  = 3;
+    static final int SEGMENT_SINGLE = 4;
+
+    private static final int SEGMENT_COUNT = 5;
+
+    private static final int DEFAULT_MAX_PER_SHAPE = 64;
+
+    /**
+     * Buttons inflated per idle callback while pre-warming in the background
+     */
+    private static final int IDLE_BATCH_SIZE = 4;
+
+    private final LayoutInflater inflater;
+
+    /**
+     * Only used to generate layout params for inflated buttons
+     */
+    private final LinearLayout layoutParent;
+
+    private final int maxPerShape;
+
+    private final List<List<View>> scrap = new ArrayList<>(SEGMENT_COUNT);
+
+    public SegmentViewPool(Context context) {
+        this(context, DEFAULT_MAX_PER_SHAPE);
+    }
+
+    /**
+     * @param context     context used to inflate the buttons
+     * @param maxPerShape maximum number of idle buttons kept for each shape (left, center, right, single)
+     */
+    public SegmentViewPool(Context context, int maxPerShape) {
+        this.inflater = LayoutInflater.from(context);
+        this.layoutParent = new LinearLayout(context);
+        this.maxPerShape = maxPerShape;
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            scrap.add(new ArrayList<View>());
+        }
+    }
+
+    /**
+     * Inflates right away the buttons needed by a number of toggles. Buttons already
+     * in the pool count towards that, so calling it again inflates nothing.
+     *
+     * @param elementCount number of elements of each toggle
+     * @param toggleCount  number of toggles
+     */
+    public void prewarm(int elementCount, int toggleCount) {
+        for (int i = 0; i < elementCount; i++) {
+            final int role = getSegmentRole(i, elementCount);
+            List<View> views = scrap.get(role);
+            int needed = Math.min(maxPerShape, toggleCount * countOf(role, elementCount));
+            while (views.size() < needed) {
+                views.add(inflate(role));
+            }
+        }
+    }
+
+    /**
+     * Same as {@link #prewarm(int, int)}, but inflates a few buttons at a time
+     * whenever the main thread is idle, keeping it off the critical path.
+     * Must be called from the main thread.
+     */
+    public void prewarmWhenIdle(final int elementCount, final int toggleCount) {
+        Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+
+            private int position = 0;
+
+            @Override
+            public boolean queueIdle() {
+                int inflated = 0;
+                while (position < elementCount && inflated < IDLE_BATCH_SIZE) {
+                    final int role = getSegmentRole(position, elementCount);
+                    List<View> views = scrap.get(role);
+                    if (views.size() < Math.min(maxPerShape, toggleCount * countOf(role, elementCount))) {
+                        views.add(inflate(role));
+                        inflated++;
+                    } else {
+                        position++;
+                    }
+                }
+                // Keep going on the next idle pass until everything is inflated
+                return position < elementCount;
+            }
+
+        });
+    }
+
+    /**
+     * @return The number of idle buttons in the pool
+     */
+    public int size() {
+        int size = 0;
+        for (List<View> views : scrap) {
+            size += views.size();
+        }
+        return size;
+    }
+
+    /**
+     * Drops every idle button
+     */
+    public void clear() {
+        for (List<View> views : scrap) {
+            views.clear();
+        }
+    }
+
+    /**
+     * @return A pooled button with the given shape, or a freshly inflated one
+     */
+    View obtain(int role) {
+        List<View> views = scrap.get(role);
+        if (!views.isEmpty()) {
+            return views.remove(views.size() - 1);
+        }
+        return inflate(role);
+    }
+
+    /**
+     * Gives a detached button back to the pool
+     *
+     * @return false if the pool was full and the button was dropped
+     */
+    boolean release(int role, View view) {
+        List<View> views = scrap.get(role);
+        if (role == SEGMENT_CUSTOM || views.size() >= maxPerShape) {
+            return false;
+        }
+        views.add(view);
+        return true;
+    }
+
+    private View inflate(int role) {
+        ToggleMetrics.countInflation();
+        return inflater.inflate(getLayout(role), layoutParent, false);
+    }
+
+    /**
+     * @return The shape of the segment at the given position
+     */
+    static int getSegmentRole(int position, int elementCount) {
+        if (elementCount == 1) {
+            return SEGMENT_SINGLE;
+        } else if (position == 0) {
+            return SEGMENT_LEFT;
+        } else if (position == elementCount - 1) {
+            return SEGMENT_RIGHT;
+        }
+        return SEGMENT_CENTER;
+    }
+
+    static int getLayout(int role) {
+        switch (role) {
+            case SEGMENT_SINGLE:
+                // Add a special view when there's only one element
+                return R.layout.view_single_toggle_button;
+            case SEGMENT_LEFT:
+                return R.layout.view_left_toggle_button;
+            case SEGMENT_RIGHT:
+                return R.layout.view_right_toggle_button;
+            default:
+                return R.layout.view_center_toggle_button;
+        }
+    }
+
+    /**
+     * @return How many segments of a toggle have the given shape
+     */
+    private static int countOf(int role, int elementCount) {
+        if (role == SEGMENT_CENTER) {
+            return Math.max(0, elementCount - 2);
+        }
+        return role == SEGMENT_SINGLE ? (elementCount == 1 ? 1 : 0) : (elementCount > 1 ? 1 : 0);
+    }
+}
@@ -0,0 +1,150 @@
+package org.honorato.multistatetogglebutton;
+
+import android.graphics.Typeface;
+import android.graphics.drawable.Drawable;
+import android.support.v4.util.LruCache;
+import android.support.v4.view.ViewCompat;
+import android.text.Layout;
+import android.text.Spanned;
+import android.text.TextPaint;
+import android.text.method.TransformationMethod;
+import android.widget.TextView;
+
+/**
+ * Widths of segment labels, shared by every toggle. Toggles showing the same labels with
+ * the same text appearance, e.g. all the rows of a list, measure each label only once.
+ *
+ * The cache replaces the unconstrained measure pass that finds how wide each label wants
+ * to be. It isn't used when that width doesn't matter, i.e. equally wide segments in an
+ * exact width such as match_parent. Either way every button still lays out its own text
+ * when measured at its final width, which no cache can skip.
+ *
+ * Must only be used from the main thread.
+ */
+public final class TextWidthCache {
+
+    private static final int MAX_SIZE = 512;
+
+    private static final LruCache<Key, Integer> CACHE = new LruCache<>(MAX_SIZE);
+
+    /**
+     * Reused for lookups, so hits don't allocate
+     */
+    private static final Key LOOKUP = new Key();
+
+    private static long hitCount, missCount;
+
+    private TextWidthCache() {
+    }
+
+    /**
+     * @return The number of labels whose width was found in the cache
+     */
+    public static long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return The number of labels that had to be measured
+     */
+    public static long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Drops every cached width and resets the counters
+     */
+    public static void clear() {
+        CACHE.evictAll();
+        hitCount = 0;
+        missCount = 0;
+    }
+
+    /**
+     * @return The width the view would measure to without constraints, including its padding,
+     * icons and minimum width
+     */
+    static int getContentWidth(TextView view) {
+        int width = getTextWidth(view) + view.getCompoundPaddingLeft() + view.getCompoundPaddingRight();
+        Drawable background = view.getBackground();
+        int minimumWidth = Math.max(ViewCompat.getMinimumWidth(view), background != null ? background.getMinimumWidth() : 0);
+        return Math.max(width, minimumWidth);
+    }
+
+    /**
+     * @return The width of the view's text, as shown, e.g. in all caps
+     */
+    static int getTextWidth(TextView view) {
+        final CharSequence text = view.getText();
+        final TextPaint paint = view.getPaint();
+        final TransformationMethod method = view.getTransformationMethod();
+        if (text instanceof Spanned) {
+            // Spans may change the width, those aren't cached
+            return measure(text, method, view, paint);
+        }
+        LOOKUP.set(text.toString(), paint.getTypeface(), paint.getTextSize(), paint.getTextScaleX(),
+                paint.getFlags(), method != null ? method.getClass() : null);
+        Integer width = CACHE.get(LOOKUP);
+        if (width != null) {
+            hitCount++;
+            return width;
+        }
+        missCount++;
+        width = measure(text, method, view, paint);
+        CACHE.put(LOOKUP.copy(), width);
+        return width;
+    }
+
+    private static int measure(CharSequence text, TransformationMethod method, TextView view, TextPaint paint) {
+        CharSequence shown = method != null ? method.getTransformation(text, view) : text;
+        return (int) Math.ceil(Layout.getDesiredWidth(shown, paint));
+    }
+
+    private static final class Key {
+        String text;
+        Typeface typeface;
+        float textSize, textScaleX;
+        int flags;
+        Class<?> transformation;
+
+        void set(String text, Typeface typeface, float textSize, float textScaleX, int flags, Class<?> transformation) {
+            this.text = text;
+            this.typeface = typeface;
+            this.textSize = textSize;
+            this.textScaleX = textScaleX;
+            this.flags = flags;
+            this.transformation = transformation;
+        }
+
+        Key copy() {
+            Key key = new Key();
+            key.set(text, typeface, textSize, textScaleX, flags, transformation);
+            return key;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return text.equals(other.text)
+                    && typeface == other.typeface
+                    && textSize == other.textSize
+                    && textScaleX == other.textScaleX
+                    && flags == other.flags
+                    && transformation == other.transformation;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = text.hashCode();
+            result = 31 * result + (typeface != null ? typeface.hashCode() : 0);
+            result = 31 * result + Float.floatToIntBits(textSize);
+            result = 31 * result + Float.floatToIntBits(textScaleX);
+            result = 31 * result + flags;
+            result = 31 * result + (transformation != null ? transformation.hashCode() : 0);
+            return result;
+        }
+    }
+}
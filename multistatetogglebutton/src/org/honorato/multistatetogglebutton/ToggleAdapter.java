@@ -0,0 +1,120 @@
+package org.honorato.multistatetogglebutton;
+
+import android.support.annotation.DrawableRes;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Feeds a {@link MultiStateToggleButton} from a list of items of any type.
+ * Labels are only computed when a segment is shown, and each item has a stable id, so
+ * elements can be selected by id and new lists keep the selection of the items they still hold.
+ *
+ * An adapter can only be set on one toggle at a time, and must be used from the main thread.
+ *
+ * @param <T> the type of the items
+ */
+public abstract class ToggleAdapter<T> {
+
+    private List<T> items = Collections.emptyList();
+
+    private long[] ids = new long[0];
+
+    /**
+     * Labels computed so far, null until the segment is shown
+     */
+    private CharSequence[] labels = new CharSequence[0];
+
+    /**
+     * Position of every id
+     */
+    private IdIndex positions = IdIndex.empty();
+
+    private MultiStateToggleButton toggle;
+
+    /**
+     * @return The text of the segment showing the item
+     */
+    public abstract CharSequence getLabel(T item);
+
+    /**
+     * @return An id unique among the items, which must not change for the same item
+     */
+    public abstract long getItemId(T item);
+
+    /**
+     * @return An optional icon for the segment showing the item, or 0
+     */
+    @DrawableRes
+    public int getIconResourceId(T item) {
+        return 0;
+    }
+
+    /**
+     * Replaces the items. Items already present, going by their id, keep their selection.
+     * Labels are read again when shown, so items changed in place show their new label,
+     * and segments whose label and icon are the same are not touched.
+     *
+     * @param items the new items, copied
+     * @throws IllegalArgumentException if two items have the same id
+     */
+    public void setItems(@Nullable List<? extends T> items) {
+        final int count = items != null ? items.size() : 0;
+        List<T> newItems = new ArrayList<>(count);
+        long[] newIds = new long[count];
+        for (int i = 0; i < count; i++) {
+            T item = items.get(i);
+            newItems.add(item);
+            newIds[i] = getItemId(item);
+        }
+        IdIndex newPositions = ElementDiff.indexIds(newIds);
+        int[] previousPositions = ElementDiff.previousPositions(positions, newIds);
+
+        this.items = newItems;
+        this.ids = newIds;
+        this.labels = new CharSequence[count];
+        this.positions = newPositions;
+        if (toggle != null) {
+            toggle.onItemsChanged(previousPositions);
+        }
+    }
+
+    public int getCount() {
+        return items.size();
+    }
+
+    public T getItem(int position) {
+        return items.get(position);
+    }
+
+    public long getId(int position) {
+        return ids[position];
+    }
+
+    /**
+     * @return The position of the item with the given id, or -1
+     */
+    public int getPosition(long id) {
+        return positions.get(id);
+    }
+
+    CharSequence getLabelAt(int position) {
+        if (labels[position] == null) {
+            labels[position] = getLabel(items.get(position));
+        }
+        return labels[position];
+    }
+
+    int getIconResourceIdAt(int position) {
+        return getIconResourceId(items.get(position));
+    }
+
+    void setToggle(@Nullable MultiStateToggleButton toggle) {
+        if (toggle != null && this.toggle != null && this.toggle != toggle) {
+            throw new IllegalStateException("The adapter is already set on another toggle");
+        }
+        this.toggle = toggle;
+    }
+}
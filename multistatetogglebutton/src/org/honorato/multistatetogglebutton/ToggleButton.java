@@ -1,28 +1,137 @@
 package org.honorato.multistatetogglebutton;
 
 import android.content.Context;
+import android.content.res.ColorStateList;
+import android.content.res.TypedArray;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Parcel;
+import android.os.Parcelable;
 import android.support.annotation.ColorInt;
 import android.support.annotation.ColorRes;
 import android.support.annotation.DrawableRes;
+import android.support.annotation.Nullable;
 import android.support.v4.content.ContextCompat;
+import android.support.v4.view.ViewCompat;
 import android.util.AttributeSet;
 import android.widget.LinearLayout;
 
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
 public abstract class ToggleButton extends LinearLayout {
 
     public interface OnValueChangedListener {
-        // TODO: Add this callback:
-        // public void onValueChanged(int value, boolean selected);
+        // See OnSelectionChangedListener for the new state of the value
         public void onValueChanged(int value);
     }
 
+    public interface OnSelectionChangedListener {
+        /**
+         * @param index    the position that changed, or {@link #INDEX_MULTIPLE} if several did
+         * @param selected the new state of that position
+         * @param mask     the whole selection, position 0 being the lowest bit. Only the first
+         *                 64 positions fit, use getStates(boolean[]) beyond that.
+         */
+        public void onSelectionChanged(int index, boolean selected, long mask);
+    }
+
+    /**
+     * Reported instead of a position when several positions changed at once
+     */
+    public static final int INDEX_MULTIPLE = -1;
+
     OnValueChangedListener listener;
+    OnSelectionChangedListener selectionListener;
     Context context;
+
+    /**
+     * The selection, source of truth for the buttons' state
+     */
+    final SelectionModel selection = new SelectionModel();
+
+    /**
+     * Reused to compute what a change flips before applying it
+     */
+    final SelectionDelta delta = new SelectionDelta();
+
+    /**
+     * Rules enforced on taps, null if none were declared
+     */
+    SelectionRules selectionRules;
+
+    /**
+     * If true, programmatic selection changes are reported once per frame
+     */
+    boolean coalesceSelectionChanges = false;
+
+    /**
+     * True while handling a tap, user changes are always reported right away
+     */
+    boolean userAction = false;
+
+    private static final String KEY_BUTTON_STATES  = "button_states";
+    private static final String KEY_INSTANCE_STATE = "instance_state";
+
+    /**
+     * True while restoring the instance state, which isn't reported as a selection change
+     */
+    private boolean restoring = false;
+
+    private static final Handler MAIN_HANDLER = new Handler(Looper.getMainLooper());
+
+    /**
+     * Latest selection posted from any thread, only this one gets applied
+     */
+    private final AtomicReference<PostedSelection> postedSelection = new AtomicReference<>();
+
+    private final Runnable postedSelectionApplier = new Runnable() {
+
+        @Override
+        public void run() {
+            PostedSelection posted = postedSelection.getAndSet(null);
+            if (posted != null) {
+                setStates(posted.toStates(selection));
+            }
+        }
+
+    };
+
+    private final Runnable postedSelectionScheduler = new Runnable() {
+
+        @Override
+        public void run() {
+            ViewCompat.postOnAnimation(ToggleButton.this, postedSelectionApplier);
+        }
+
+    };
+
+    private boolean selectionDispatchPending = false;
+    private int pendingIndex;
+
+    private final Runnable selectionDispatcher = new Runnable() {
+
+        @Override
+        public void run() {
+            if (selectionDispatchPending) {
+                selectionDispatchPending = false;
+                dispatchSelectionChanged(pendingIndex);
+            }
+        }
+
+    };
+
     @ColorInt int colorPressed, colorNotPressed; // Resolved colors (format 0xAARRGGBB)
     int colorPressedText, colorPressedBackground;
     int colorNotPressedText, colorNotPressedBackground;
     int pressedBackgroundResource, notPressedBackgroundResource;
 
+    /**
+     * Tint of the icons depending on the selected state, null to keep their own colors
+     */
+    @Nullable ColorStateList iconTint;
+
     public ToggleButton(Context context) {
         super(context, null);
         this.context = context;
@@ -33,16 +142,294 @@ public abstract class ToggleButton extends LinearLayout {
         this.context = context;
     }
 
+    /**
+     * Reads the colors declared in the MultiStateToggleButton styleable
+     *
+     * @param a attributes obtained for R.styleable.MultiStateToggleButton
+     */
+    void readColors(TypedArray a) {
+        colorPressed = a.getColor(R.styleable.MultiStateToggleButton_mstbPrimaryColor, 0);
+        colorNotPressed = a.getColor(R.styleable.MultiStateToggleButton_mstbSecondaryColor, 0);
+        colorPressedText = a.getColor(R.styleable.MultiStateToggleButton_mstbColorPressedText, 0);
+        colorPressedBackground = a.getColor(R.styleable.MultiStateToggleButton_mstbColorPressedBackground, 0);
+        pressedBackgroundResource = a.getResourceId(R.styleable.MultiStateToggleButton_mstbColorPressedBackgroundResource, 0);
+        colorNotPressedText = a.getColor(R.styleable.MultiStateToggleButton_mstbColorNotPressedText, 0);
+        colorNotPressedBackground = a.getColor(R.styleable.MultiStateToggleButton_mstbColorNotPressedBackground, 0);
+        notPressedBackgroundResource = a.getResourceId(R.styleable.MultiStateToggleButton_mstbColorNotPressedBackgroundResource, 0);
+    }
+
+    /**
+     * Called after any of the colors or background resources changed
+     */
+    void onColorsChanged() {
+    }
+
+    /**
+     * Called after the icon tint changed
+     */
+    void onIconTintChanged() {
+    }
+
+    /**
+     * @return The texts of a list of items, which don't need to be Strings
+     */
+    static CharSequence[] toTexts(List<?> items) {
+        CharSequence[] texts = new CharSequence[items.size()];
+        for (int i = 0; i < texts.length; i++) {
+            Object item = items.get(i);
+            texts[i] = item instanceof CharSequence || item == null ? (CharSequence) item : item.toString();
+        }
+        return texts;
+    }
+
     public void setOnValueChangedListener(OnValueChangedListener l) {
         this.listener = l;
     }
 
+    /**
+     * Rules that {@link #setValue(int)}, and so taps, enforce, e.g. in multiple choice mode:
+     *
+     * <pre>
+     * button.getSelectionRules().setMaxCount(2);
+     * button.getSelectionRules().addExclusiveGroup(0, 1);
+     * </pre>
+     *
+     * Taps that would break a rule change nothing and aren't reported to the listeners.
+     * {@link #setStates(boolean[])} and the elements' initial selection aren't checked.
+     *
+     * @return The rules of this button, created if needed
+     */
+    public SelectionRules getSelectionRules() {
+        if (selectionRules == null) {
+            selectionRules = new SelectionRules();
+        }
+        return selectionRules;
+    }
+
+    /**
+     * Replaces the rules of this button, e.g. to share them among the rows of a list
+     *
+     * @param rules the rules to enforce, or null for none
+     */
+    public void setSelectionRules(@Nullable SelectionRules rules) {
+        this.selectionRules = rules;
+    }
+
     public void setValue(int value) {
         if (this.listener != null) {
+            ToggleMetrics.countListenerDispatch();
             listener.onValueChanged(value);
         }
     }
 
+    /**
+     * Replaces the whole selection. This only updates the selection and tells the listeners,
+     * subclasses override it to update their segments as well.
+     *
+     * @param selected the state of each position, ignored if its length doesn't match
+     */
+    public void setStates(boolean[] selected) {
+        if (delta.computeStates(selection, selected)) {
+            delta.applyTo(selection);
+            notifySelectionChanged(delta.getChangedIndex());
+        }
+    }
+
+    @Override
+    public Parcelable onSaveInstanceState() {
+        SavedState state = new SavedState(super.onSaveInstanceState());
+        state.count = selection.size();
+        state.words = selection.toWords();
+        return state;
+    }
+
+    @Override
+    public void onRestoreInstanceState(Parcelable state) {
+        boolean[] states = null;
+        if (state instanceof SavedState) {
+            SavedState savedState = (SavedState) state;
+            // Nothing to do if the selection is already the saved one, e.g. the default one
+            if (savedState.count == selection.size() && !selection.contentEquals(savedState.count, savedState.words)) {
+                states = SelectionModel.toStates(savedState.count, savedState.words);
+            }
+            state = savedState.getSuperState();
+        } else if (state instanceof Bundle) {
+            // Saved by an older version of the library
+            Bundle bundle = (Bundle) state;
+            states = bundle.getBooleanArray(KEY_BUTTON_STATES);
+            state = bundle.getParcelable(KEY_INSTANCE_STATE);
+        }
+        super.onRestoreInstanceState(state);
+        if (states != null) {
+            restoring = true;
+            try {
+                setStates(states);
+            } finally {
+                restoring = false;
+            }
+        }
+    }
+
+    /**
+     * The selection packed in longs, plus the element count to validate it on restore
+     */
+    static class SavedState extends BaseSavedState {
+        int count;
+        long[] words;
+
+        SavedState(Parcelable superState) {
+            super(superState);
+        }
+
+        private SavedState(Parcel in) {
+            super(in);
+            count = in.readInt();
+            words = in.createLongArray();
+        }
+
+        @Override
+        public void writeToParcel(Parcel out, int flags) {
+            super.writeToParcel(out, flags);
+            out.writeInt(count);
+            out.writeLongArray(words);
+        }
+
+        public static final Parcelable.Creator<SavedState> CREATOR = new Parcelable.Creator<SavedState>() {
+
+            @Override
+            public SavedState createFromParcel(Parcel in) {
+                return new SavedState(in);
+            }
+
+            @Override
+            public SavedState[] newArray(int size) {
+                return new SavedState[size];
+            }
+
+        };
+    }
+
+    /**
+     * Thread safe version of {@link #setStates(boolean[])}. Can be called from any thread,
+     * the states are applied on the main thread on the next frame. If several updates are
+     * posted before that, only the latest one is applied.
+     *
+     * @param selected the new states, copied before returning
+     */
+    public void postStates(boolean[] selected) {
+        if (selected != null) {
+            postSelection(new PostedSelection(selected.clone(), 0));
+        }
+    }
+
+    /**
+     * Same as {@link #postStates(boolean[])}, with the first 64 positions packed
+     * in a long, position 0 being the lowest bit. Positions from 64 on keep their state.
+     */
+    public void postSelectionMask(long mask) {
+        postSelection(new PostedSelection(null, mask));
+    }
+
+    private void postSelection(PostedSelection posted) {
+        if (postedSelection.getAndSet(posted) != null) {
+            // Already scheduled, the newer selection replaces the older one
+            return;
+        }
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            postedSelectionScheduler.run();
+        } else {
+            MAIN_HANDLER.post(postedSelectionScheduler);
+        }
+    }
+
+    private static final class PostedSelection {
+        final boolean[] states;
+        final long mask;
+
+        PostedSelection(boolean[] states, long mask) {
+            this.states = states;
+            this.mask = mask;
+        }
+
+        /**
+         * @param current the selection the posted one replaces, it gives the states of the positions the mask can't hold
+         */
+        boolean[] toStates(SelectionModel current) {
+            if (states != null) {
+                return states;
+            }
+            final int size = current.size();
+            boolean[] result = size > 64 ? current.getStates(null) : new boolean[size];
+            for (int i = 0; i < size && i < 64; i++) {
+                result[i] = (mask & (1L << i)) != 0;
+            }
+            return result;
+        }
+    }
+
+    public void setOnSelectionChangedListener(OnSelectionChangedListener l) {
+        this.selectionListener = l;
+    }
+
+    /**
+     * If enabled, selection changes made in code (e.g. setStates in a loop) are reported
+     * at most once per frame. Taps are always reported right away.
+     *
+     * @param enable
+     */
+    public void setCoalesceSelectionChanges(boolean enable) {
+        this.coalesceSelectionChanges = enable;
+        if (!enable) {
+            selectionDispatcher.run();
+        }
+    }
+
+    /**
+     * Sets the value the same way a tap on the given position does
+     */
+    void setValueFromUser(int position) {
+        userAction = true;
+        try {
+            setValue(position);
+        } finally {
+            userAction = false;
+        }
+    }
+
+    /**
+     * Called by subclasses after the selection changed
+     *
+     * @param index the position that changed, or {@link #INDEX_MULTIPLE}
+     */
+    void notifySelectionChanged(int index) {
+        if (selectionListener == null || restoring) {
+            return;
+        }
+        if (coalesceSelectionChanges && !userAction) {
+            if (selectionDispatchPending) {
+                if (pendingIndex != index) {
+                    pendingIndex = INDEX_MULTIPLE;
+                }
+            } else {
+                selectionDispatchPending = true;
+                pendingIndex = index;
+                ViewCompat.postOnAnimation(this, selectionDispatcher);
+            }
+            return;
+        }
+        // Anything waiting for the next frame happened before this change
+        selectionDispatcher.run();
+        dispatchSelectionChanged(index);
+    }
+
+    private void dispatchSelectionChanged(int index) {
+        if (selectionListener == null) {
+            return;
+        }
+        boolean selected = index >= 0 && index < selection.size() && selection.isSelected(index);
+        ToggleMetrics.countListenerDispatch();
+        selectionListener.onSelectionChanged(index, selected, selection.getMask());
+    }
 
     /**
      * The desired color resource identifier generated by the aapt tool
@@ -63,6 +450,7 @@ public abstract class ToggleButton extends LinearLayout {
     public void setColors(@ColorInt int colorPressed, @ColorInt int colorNotPressed) {
         this.colorPressed = colorPressed;
         this.colorNotPressed = colorNotPressed;
+        onColorsChanged();
     }
 
     /**
@@ -84,6 +472,7 @@ public abstract class ToggleButton extends LinearLayout {
     public void setPressedColors(@ColorInt int colorPressedText, @ColorInt int colorPressedBackground) {
         this.colorPressedText = colorPressedText;
         this.colorPressedBackground = colorPressedBackground;
+        onColorsChanged();
     }
 
     /**
@@ -105,6 +494,7 @@ public abstract class ToggleButton extends LinearLayout {
     public void setNotPressedColors(int colorNotPressedText, int colorNotPressedBackground) {
         this.colorNotPressedText = colorNotPressedText;
         this.colorNotPressedBackground = colorNotPressedBackground;
+        onColorsChanged();
     }
 
     /**
@@ -116,6 +506,7 @@ public abstract class ToggleButton extends LinearLayout {
     public void setBackgroundResources(@DrawableRes int pressedBackgroundResource, @DrawableRes int notPressedBackgroundResource) {
         this.pressedBackgroundResource = pressedBackgroundResource;
         this.notPressedBackgroundResource = notPressedBackgroundResource;
+        onColorsChanged();
     }
 
     /**
@@ -137,5 +528,27 @@ public abstract class ToggleButton extends LinearLayout {
     public void setForegroundColors(int colorPressedText, int colorNotPressedText) {
         this.colorPressedText = colorPressedText;
         this.colorNotPressedText = colorNotPressedText;
+        onColorsChanged();
+    }
+
+    /**
+     * Tints the icons, the tint is a state list so the icons follow the selection.
+     * Color values are in the form 0xAARRGGBB
+     *
+     * @param colorSelected    resolved color for the icon of a selected element
+     * @param colorNotSelected resolved color for the icon of a released element
+     */
+    public void setIconColors(@ColorInt int colorSelected, @ColorInt int colorNotSelected) {
+        setIconTintList(new ColorStateList(
+                new int[][]{TogglePalette.STATE_SELECTED, TogglePalette.STATE_DEFAULT},
+                new int[]{colorSelected, colorNotSelected}));
+    }
+
+    /**
+     * @param tint the tint of the icons, use state_selected for the selected elements, or null to remove it
+     */
+    public void setIconTintList(@Nullable ColorStateList tint) {
+        this.iconTint = tint;
+        onIconTintChanged();
     }
-}
\ No newline at end of file
+}
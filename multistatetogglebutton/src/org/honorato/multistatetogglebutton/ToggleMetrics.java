@@ -0,0 +1,190 @@
+package org.honorato.multistatetogglebutton;
+
+import android.support.v4.os.TraceCompat;
+
+import java.util.Locale;
+
+/**
+ * Counters and timings of the work done by every toggle, to attribute jank to them
+ * and track regressions. Nothing is recorded until an instance is installed:
+ *
+ * <pre>
+ * ToggleMetrics metrics = new ToggleMetrics();
+ * ToggleMetrics.install(metrics);
+ * ...
+ * Log.d(TAG, metrics.toString());
+ * </pre>
+ *
+ * The hot paths also show up as trace sections in systrace, whether metrics are installed or not.
+ * Metrics are recorded on the main thread and should be read from it.
+ */
+public class ToggleMetrics {
+
+    public static final int OP_SET_ELEMENTS = 0;
+    public static final int OP_SET_BUTTONS  = 1;
+    public static final int OP_SET_VALUE    = 2;
+    public static final int OP_SET_STATES   = 3;
+    public static final int OP_REFRESH      = 4;
+    public static final int OP_MEASURE      = 5;
+    public static final int OP_LAYOUT       = 6;
+
+    private static final int OPERATION_COUNT = 7;
+
+    /**
+     * Trace section of each operation
+     */
+    private static final String[] SECTIONS = new String[]{
+            "MSTB.setElements",
+            "MSTB.setButtons",
+            "MSTB.setValue",
+            "MSTB.setStates",
+            "MSTB.refresh",
+            "MSTB.onMeasure",
+            "MSTB.onLayout",
+    };
+
+    private static ToggleMetrics installed;
+
+    private long inflationCount;
+    private long stateApplicationCount;
+    private long drawableLoadCount;
+    private long listenerDispatchCount;
+    private final long[] operationCounts = new long[OPERATION_COUNT];
+    private final long[] operationNanos = new long[OPERATION_COUNT];
+
+    /**
+     * Starts recording into the given metrics, replacing the ones installed before
+     *
+     * @param metrics the metrics to record into, or null to stop recording
+     */
+    public static void install(ToggleMetrics metrics) {
+        installed = metrics;
+    }
+
+    public static ToggleMetrics getInstalled() {
+        return installed;
+    }
+
+    /**
+     * @return The number of segment buttons inflated
+     */
+    public long getInflationCount() {
+        return inflationCount;
+    }
+
+    /**
+     * @return The number of times a segment's selected state was applied to its view
+     */
+    public long getStateApplicationCount() {
+        return stateApplicationCount;
+    }
+
+    /**
+     * @return The number of drawables loaded from resources, icons and backgrounds
+     */
+    public long getDrawableLoadCount() {
+        return drawableLoadCount;
+    }
+
+    /**
+     * @return The number of calls to the value and selection listeners
+     */
+    public long getListenerDispatchCount() {
+        return listenerDispatchCount;
+    }
+
+    /**
+     * @param operation one of the OP_* constants
+     * @return How many times the operation ran
+     */
+    public long getOperationCount(int operation) {
+        return operationCounts[operation];
+    }
+
+    /**
+     * @param operation one of the OP_* constants
+     * @return The time spent in the operation, in nanoseconds
+     */
+    public long getOperationNanos(int operation) {
+        return operationNanos[operation];
+    }
+
+    public void reset() {
+        inflationCount = 0;
+        stateApplicationCount = 0;
+        drawableLoadCount = 0;
+        listenerDispatchCount = 0;
+        for (int i = 0; i < OPERATION_COUNT; i++) {
+            operationCounts[i] = 0;
+            operationNanos[i] = 0;
+        }
+    }
+
+    /**
+     * Called after every operation, e.g. to forward it elsewhere
+     *
+     * @param operation one of the OP_* constants
+     * @param nanos     the time it took
+     */
+    protected void onOperation(int operation, long nanos) {
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("ToggleMetrics{")
+                .append("inflations=").append(inflationCount)
+                .append(", stateApplications=").append(stateApplicationCount)
+                .append(", drawableLoads=").append(drawableLoadCount)
+                .append(", listenerDispatches=").append(listenerDispatchCount);
+        for (int i = 0; i < OPERATION_COUNT; i++) {
+            builder.append(", ").append(SECTIONS[i]).append('=').append(operationCounts[i])
+                    .append(String.format(Locale.US, "/%.3fms", operationNanos[i] / 1e6));
+        }
+        return builder.append('}').toString();
+    }
+
+    /**
+     * Opens the trace section of an operation
+     *
+     * @return The start time to pass to {@link #end(int, long)}, 0 if no metrics are installed
+     */
+    static long begin(int operation) {
+        TraceCompat.beginSection(SECTIONS[operation]);
+        return installed != null ? System.nanoTime() : 0;
+    }
+
+    static void end(int operation, long start) {
+        TraceCompat.endSection();
+        final ToggleMetrics metrics = installed;
+        if (metrics != null && start != 0) {
+            final long nanos = System.nanoTime() - start;
+            metrics.operationCounts[operation]++;
+            metrics.operationNanos[operation] += nanos;
+            metrics.onOperation(operation, nanos);
+        }
+    }
+
+    static void countInflation() {
+        if (installed != null) {
+            installed.inflationCount++;
+        }
+    }
+
+    static void countStateApplication() {
+        if (installed != null) {
+            installed.stateApplicationCount++;
+        }
+    }
+
+    static void countDrawableLoad() {
+        if (installed != null) {
+            installed.drawableLoadCount++;
+        }
+    }
+
+    static void countListenerDispatch() {
+        if (installed != null) {
+            installed.listenerDispatchCount++;
+        }
+    }
+}
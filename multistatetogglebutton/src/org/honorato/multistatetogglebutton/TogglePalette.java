@@ -0,0 +1,194 @@
+package org.honorato.multistatetogglebutton;
+
+import android.content.Context;
+import android.content.res.ColorStateList;
+import android.content.res.Resources;
+import android.graphics.drawable.ColorDrawable;
+import android.graphics.drawable.Drawable;
+import android.graphics.drawable.StateListDrawable;
+import android.support.v4.content.ContextCompat;
+import android.util.TypedValue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * The colors and backgrounds of a toggle button, resolved once and shared by every
+ * instance with the same configuration and theme. Segments get state lists driven by
+ * {@link android.view.View#setSelected(boolean)}, so toggling needs no resource lookups.
+ *
+ * Palettes are cached per theme and must only be obtained from the main thread.
+ */
+final class TogglePalette {
+
+    static final int[] STATE_SELECTED = new int[]{android.R.attr.state_selected};
+    static final int[] STATE_DEFAULT  = new int[0];
+
+    private static final Map<Resources.Theme, Map<Key, TogglePalette>> CACHE = new WeakHashMap<>();
+
+    /**
+     * The background of pressed and released segments
+     */
+    final Drawable.ConstantState pressedBackground;
+    final Drawable.ConstantState notPressedBackground;
+
+    /**
+     * Text color, depending on the selected state
+     */
+    final ColorStateList textColors;
+
+    /**
+     * Color used for the outline of the whole control
+     */
+    final int primaryColor;
+
+    private TogglePalette(Drawable.ConstantState pressedBackground, Drawable.ConstantState notPressedBackground,
+                          ColorStateList textColors, int primaryColor) {
+        this.pressedBackground = pressedBackground;
+        this.notPressedBackground = notPressedBackground;
+        this.textColors = textColors;
+        this.primaryColor = primaryColor;
+    }
+
+    /**
+     * @return The palette matching the button's current colors, creating it if needed
+     */
+    static TogglePalette obtain(Context context, ToggleButton button) {
+        Resources.Theme theme = context.getTheme();
+        Map<Key, TogglePalette> palettes = CACHE.get(theme);
+        if (palettes == null) {
+            palettes = new HashMap<>();
+            CACHE.put(theme, palettes);
+        }
+        Key key = new Key(button);
+        TogglePalette palette = palettes.get(key);
+        if (palette == null) {
+            palette = create(context, key);
+            palettes.put(key, palette);
+        }
+        return palette;
+    }
+
+    /**
+     * @return A new background showing the pressed drawable while the view is selected
+     */
+    Drawable newBackground(Resources res) {
+        StateListDrawable background = new StateListDrawable();
+        background.addState(STATE_SELECTED, pressedBackground.newDrawable(res));
+        background.addState(STATE_DEFAULT, notPressedBackground.newDrawable(res));
+        return background;
+    }
+
+    int getTextColor(boolean selected) {
+        return textColors.getColorForState(selected ? STATE_SELECTED : STATE_DEFAULT, textColors.getDefaultColor());
+    }
+
+    /**
+     * Mirrors the rules that used to be applied on every state change
+     */
+    private static TogglePalette create(Context context, Key key) {
+        final int primary = resolveThemeColor(context, R.attr.colorPrimary, R.color.button_primary_color);
+        final int secondary = resolveThemeColor(context, R.attr.colorControlNormal, R.color.button_secondary_color);
+
+        // Text appearances: WhiteBoldText when pressed, PrimaryNormalText otherwise
+        int pressedText = secondary;
+        int notPressedText = primary;
+
+        Drawable pressed;
+        Drawable notPressed;
+        if (key.pressedBackgroundResource != 0 || key.notPressedBackgroundResource != 0) {
+            pressed = getDrawable(context, key.pressedBackgroundResource);
+            notPressed = getDrawable(context, key.notPressedBackgroundResource);
+        } else if (key.colorPressed != 0 || key.colorNotPressed != 0) {
+            pressed = new ColorDrawable(key.colorPressed);
+            notPressed = new ColorDrawable(key.colorNotPressed);
+        } else if (key.colorPressedBackground != 0 || key.colorNotPressedBackground != 0) {
+            pressed = new ColorDrawable(key.colorPressedBackground);
+            notPressed = new ColorDrawable(key.colorNotPressedBackground);
+        } else {
+            pressed = getDrawable(context, R.drawable.button_pressed);
+            notPressed = getDrawable(context, R.drawable.button_not_pressed);
+        }
+
+        if (key.colorPressed != 0 || key.colorNotPressed != 0) {
+            pressedText = key.colorNotPressed;
+            notPressedText = key.colorPressed;
+        }
+        if (key.colorPressedText != 0 || key.colorNotPressedText != 0) {
+            pressedText = key.colorPressedText;
+            notPressedText = key.colorNotPressedText;
+        }
+
+        ColorStateList textColors = new ColorStateList(
+                new int[][]{STATE_SELECTED, STATE_DEFAULT},
+                new int[]{pressedText, notPressedText});
+        return new TogglePalette(pressed.getConstantState(), notPressed.getConstantState(), textColors, primary);
+    }
+
+    private static Drawable getDrawable(Context context, int resourceId) {
+        if (resourceId == 0) {
+            return new ColorDrawable(0);
+        }
+        ToggleMetrics.countDrawableLoad();
+        return ContextCompat.getDrawable(context, resourceId);
+    }
+
+    private static int resolveThemeColor(Context context, int attr, int fallbackColorRes) {
+        TypedValue value = new TypedValue();
+        if (context.getTheme().resolveAttribute(attr, value, true)) {
+            if (value.resourceId != 0) {
+                return ContextCompat.getColor(context, value.resourceId);
+            }
+            return value.data;
+        }
+        return ContextCompat.getColor(context, fallbackColorRes);
+    }
+
+    private static final class Key {
+        final int colorPressed, colorNotPressed;
+        final int colorPressedText, colorPressedBackground;
+        final int colorNotPressedText, colorNotPressedBackground;
+        final int pressedBackgroundResource, notPressedBackgroundResource;
+
+        Key(ToggleButton button) {
+            colorPressed = button.colorPressed;
+            colorNotPressed = button.colorNotPressed;
+            colorPressedText = button.colorPressedText;
+            colorPressedBackground = button.colorPressedBackground;
+            colorNotPressedText = button.colorNotPressedText;
+            colorNotPressedBackground = button.colorNotPressedBackground;
+            pressedBackgroundResource = button.pressedBackgroundResource;
+            notPressedBackgroundResource = button.notPressedBackgroundResource;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return colorPressed == other.colorPressed
+                    && colorNotPressed == other.colorNotPressed
+                    && colorPressedText == other.colorPressedText
+                    && colorPressedBackground == other.colorPressedBackground
+                    && colorNotPressedText == other.colorNotPressedText
+                    && colorNotPressedBackground == other.colorNotPressedBackground
+                    && pressedBackgroundResource == other.pressedBackgroundResource
+                    && notPressedBackgroundResource == other.notPressedBackgroundResource;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = colorPressed;
+            result = 31 * result + colorNotPressed;
+            result = 31 * result + colorPressedText;
+            result = 31 * result + colorPressedBackground;
+            result = 31 * result + colorNotPressedText;
+            result = 31 * result + colorNotPressedBackground;
+            result = 31 * result + pressedBackgroundResource;
+            result = 31 * result + notPressedBackgroundResource;
+            return result;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package org.honorato.multistatetogglebutton;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures the heap allocated by the test thread, HotSpot only
+ */
+final class Allocations {
+
+    private Allocations() {
+    }
+
+    static long allocatedBytes() {
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Batches of runs that are measured, the lowest average is kept so that one-off allocations
+     * of the runtime, e.g. reloading a cache cleared by a GC, don't count
+     */
+    private static final int BATCHES = 3;
+
+    /**
+     * Runs the operation {@code runs} times to warm it up, e.g. load classes and fill caches,
+     * then measures {@link #BATCHES} batches of {@code runs} more runs
+     *
+     * @return The average number of bytes allocated per run in the cheapest batch
+     */
+    static long bytesPerRun(Runnable operation, int runs) {
+        for (int i = 0; i < runs; i++) {
+            operation.run();
+        }
+        long bytes = Long.MAX_VALUE;
+        for (int batch = 0; batch < BATCHES; batch++) {
+            final long start = allocatedBytes();
+            for (int i = 0; i < runs; i++) {
+                operation.run();
+            }
+            bytes = Math.min(bytes, (allocatedBytes() - start) / runs);
+        }
+        return bytes;
+    }
+}
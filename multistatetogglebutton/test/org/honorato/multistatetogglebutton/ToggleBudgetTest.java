@@ -0,0 +1,445 @@
+package org.honorato.multistatetogglebutton;
+
+import android.content.Context;
+import android.graphics.Color;
+import android.os.Parcelable;
+import android.view.ContextThemeWrapper;
+import android.view.View;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Fails when an operation does more work than recorded below. Budgets are upper bounds,
+ * only raise them along with the change that needs it.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class ToggleBudgetTest {
+
+    private static final CharSequence[] TEXTS = new CharSequence[]{"Day", "Week", "Month"};
+
+    private static final int MANY_ELEMENTS = 1000;
+
+    // Binding creates one button per element, and never again for the same shapes.
+    // Nothing else creates buttons
+    private static final int BIND_INFLATIONS = 3;
+    private static final int REBIND_INFLATIONS = 0;
+    private static final int POOLED_BIND_INFLATIONS = 0;
+    // Growing by one element only creates the new center segment, shrinking creates nothing
+    private static final int GROW_BY_ONE_INFLATIONS = 1;
+    private static final int SHRINK_INFLATIONS = 0;
+    private static final int SET_VALUE_INFLATIONS = 0;
+    private static final int SET_COLORS_INFLATIONS = 0;
+    private static final int RESTORE_INFLATIONS = 0;
+
+    // Only the buttons whose state flips are touched
+    private static final int SINGLE_CHOICE_STATE_APPLICATIONS = 2;
+    private static final int MULTIPLE_CHOICE_STATE_APPLICATIONS = 1;
+    private static final int EXCLUSIVE_STATE_APPLICATIONS = 2;
+    private static final int SET_STATES_STATE_APPLICATIONS = 2;
+    private static final int RESTORE_STATE_APPLICATIONS = 2;
+    private static final int SET_COLORS_STATE_APPLICATIONS = 0;
+    private static final int UNCHANGED_STATE_APPLICATIONS = 0;
+    private static final int REJECTED_STATE_APPLICATIONS = 0;
+
+    // Listeners hear about each change once, and not about changes that didn't happen
+    private static final int CHANGE_LISTENER_DISPATCHES = 1;
+    private static final int UNCHANGED_LISTENER_DISPATCHES = 0;
+    private static final int REJECTED_LISTENER_DISPATCHES = 0;
+
+    // Palettes and icons are loaded once per theme
+    private static final int FIRST_BIND_DRAWABLE_LOADS = 2;
+    private static final int REBIND_DRAWABLE_LOADS = 0;
+    private static final int NEW_PALETTE_DRAWABLE_LOADS = 2;
+    private static final int SET_COLORS_DRAWABLE_LOADS = 0;
+    private static final int SHARED_ICON_DRAWABLE_LOADS = 1;
+
+    // Measured under Robolectric at API 21, plus about 10%
+    // Reads never allocate, and changes don't allocate in proportion to the element count:
+    // MANY_ELEMENTS states would take over 1000 bytes
+    private static final long READ_BYTES = 0;
+    private static final long SET_VALUE_BYTES = 384;
+    private static final long SET_STATES_BYTES = 64;
+    // Rebinding the same number of elements only lays out the buttons in view again
+    private static final long SET_ELEMENTS_BYTES = 448;
+    // Each button gets a background of its own, palettes are shared
+    private static final long SET_COLORS_BYTES_PER_BUTTON = 3584;
+    // A save, a setValue and a restore. Saving packs the selection in longs,
+    // restoring unpacks it in a boolean per element
+    private static final long SAVE_RESTORE_BYTES = 1312;
+
+    private ToggleMetrics metrics;
+    private Context context;
+
+    @Before
+    public void setUp() {
+        metrics = new ToggleMetrics();
+        ToggleMetrics.install(metrics);
+        // A new theme per test, so that palettes and icons cached by earlier tests don't count
+        context = new ContextThemeWrapper(RuntimeEnvironment.application, R.style.Theme_AppCompat_Light);
+    }
+
+    @After
+    public void tearDown() {
+        ToggleMetrics.install(null);
+    }
+
+    private MultiStateToggleButton newToggle() {
+        return new MultiStateToggleButton(context);
+    }
+
+    /**
+     * Buttons are only bound when measured
+     */
+    private static void layout(View view) {
+        view.measure(View.MeasureSpec.makeMeasureSpec(600, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(100, View.MeasureSpec.AT_MOST));
+        view.layout(0, 0, view.getMeasuredWidth(), view.getMeasuredHeight());
+    }
+
+    /**
+     * Lays the view out again at its current size, like a row of fixed height
+     */
+    private static void relayout(View view) {
+        view.measure(View.MeasureSpec.makeMeasureSpec(view.getWidth(), View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(view.getHeight(), View.MeasureSpec.EXACTLY));
+        view.layout(0, 0, view.getMeasuredWidth(), view.getMeasuredHeight());
+    }
+
+    private static void assertWithin(String what, long budget, long actual) {
+        assertTrue(what + ": " + actual + ", budget " + budget, actual <= budget);
+    }
+
+    @Test
+    public void setElementsInflatesOncePerElement() {
+        MultiStateToggleButton toggle = newToggle();
+        toggle.setElements(TEXTS, null, new boolean[]{true, false, false});
+        layout(toggle);
+        assertWithin("inflations", BIND_INFLATIONS, metrics.getInflationCount());
+        assertWithin("drawable loads", FIRST_BIND_DRAWABLE_LOADS, metrics.getDrawableLoadCount());
+
+        metrics.reset();
+        toggle.setElements(new CharSequence[]{"Hour", "Day", "Week"}, null, new boolean[3]);
+        layout(toggle);
+        assertWithin("inflations on rebind", REBIND_INFLATIONS, metrics.getInflationCount());
+        assertWithin("drawable loads on rebind", REBIND_DRAWABLE_LOADS, metrics.getDrawableLoadCount());
+    }
+
+    @Test
+    public void resizingOnlyInflatesAddedElements() {
+        MultiStateToggleButton toggle = newToggle();
+        toggle.setElements(TEXTS);
+        layout(toggle);
+        View left = toggle.getChildAt(0);
+        View right = toggle.getChildAt(TEXTS.length - 1);
+
+        metrics.reset();
+        toggle.setElements(new CharSequence[]{"Day", "Week", "Month", "Year"});
+        layout(toggle);
+        assertWithin("inflations when growing", GROW_BY_ONE_INFLATIONS, metrics.getInflationCount());
+        assertSame(left, toggle.getChildAt(0));
+        assertSame(right, toggle.getChildAt(3));
+
+        metrics.reset();
+        toggle.setElements(new CharSequence[]{"Day", "Week"});
+        layout(toggle);
+        assertWithin("inflations when shrinking", SHRINK_INFLATIONS, metrics.getInflationCount());
+        assertSame(left, toggle.getChildAt(0));
+        assertSame(right, toggle.getChildAt(1));
+    }
+
+    @Test
+    public void pooledTogglesDontInflate() {
+        SegmentViewPool pool = new SegmentViewPool(context);
+        pool.prewarm(TEXTS.length, 2);
+        metrics.reset();
+        for (int i = 0; i < 2; i++) {
+            MultiStateToggleButton toggle = newToggle();
+            toggle.setSegmentViewPool(pool);
+            toggle.setElements(TEXTS);
+            layout(toggle);
+        }
+        assertWithin("inflations", POOLED_BIND_INFLATIONS, metrics.getInflationCount());
+    }
+
+    @Test
+    public void setValueOnlyTouchesFlippedButtons() {
+        MultiStateToggleButton toggle = newToggle();
+        toggle.setElements(TEXTS, null, new boolean[]{true, false, false});
+        layout(toggle);
+        toggle.setOnValueChangedListener(new ToggleButton.OnValueChangedListener() {
+            @Override
+            public void onValueChanged(int value) {
+            }
+        });
+
+        metrics.reset();
+        toggle.setValue(2);
+        assertWithin("state applications", SINGLE_CHOICE_STATE_APPLICATIONS, metrics.getStateApplicationCount());
+        assertWithin("listener dispatches", CHANGE_LISTENER_DISPATCHES, metrics.getListenerDispatchCount());
+        assertWithin("inflations", SET_VALUE_INFLATIONS, metrics.getInflationCount());
+
+        toggle.enableMultipleChoice(true);
+        metrics.reset();
+        toggle.setValue(0);
+        assertWithin("multiple choice state applications", MULTIPLE_CHOICE_STATE_APPLICATIONS, metrics.getStateApplicationCount());
+    }
+
+    @Test
+    public void rulesAreEnforcedBeforeTouchingButtons() {
+        MultiStateToggleButton toggle = newToggle();
+        toggle.enableMultipleChoice(true);
+        toggle.getSelectionRules().addExclusiveGroup(0, 1);
+        toggle.setElements(TEXTS, null, new boolean[]{true, false, true});
+        layout(toggle);
+        toggle.setOnValueChangedListener(new ToggleButton.OnValueChangedListener() {
+            @Override
+            public void onValueChanged(int value) {
+            }
+        });
+
+        // Selecting 1 deselects 0 in the same change
+        metrics.reset();
+        toggle.setValue(1);
+        assertArrayEquals(new boolean[]{false, true, true}, toggle.getStates());
+        assertWithin("state applications", EXCLUSIVE_STATE_APPLICATIONS, metrics.getStateApplicationCount());
+        assertWithin("listener dispatches", CHANGE_LISTENER_DISPATCHES, metrics.getListenerDispatchCount());
+
+        // Going below the minimum is rejected without touching anything
+        toggle.getSelectionRules().setMinCount(2);
+        metrics.reset();
+        toggle.setValue(2);
+        assertArrayEquals(new boolean[]{false, true, true}, toggle.getStates());
+        assertWithin("rejected state applications", REJECTED_STATE_APPLICATIONS, metrics.getStateApplicationCount());
+        assertWithin("rejected listener dispatches", REJECTED_LISTENER_DISPATCHES, metrics.getListenerDispatchCount());
+    }
+
+    @Test
+    public void setStatesOnlyTouchesFlippedButtons() {
+        MultiStateToggleButton toggle = newToggle();
+        toggle.setElements(TEXTS, null, new boolean[]{true, true, false});
+        layout(toggle);
+
+        metrics.reset();
+        toggle.setStates(new boolean[]{true, false, true});
+        assertWithin("state applications", SET_STATES_STATE_APPLICATIONS, metrics.getStateApplicationCount());
+
+        metrics.reset();
+        toggle.setStates(new boolean[]{true, false, true});
+        assertWithin("state applications without changes", UNCHANGED_STATE_APPLICATIONS, metrics.getStateApplicationCount());
+    }
+
+    @Test
+    public void setColorsReusesPalettes() {
+        MultiStateToggleButton toggle = newToggle();
+        // Palettes with background resources load their drawables, color palettes load none
+        toggle.setBackgroundResources(R.drawable.button_pressed, R.drawable.button_not_pressed);
+        toggle.setElements(TEXTS);
+        layout(toggle);
+
+        metrics.reset();
+        toggle.setColors(Color.BLUE, Color.WHITE);
+        layout(toggle);
+        TogglePalette blue = TogglePalette.obtain(context, toggle);
+        toggle.setColors(Color.RED, Color.WHITE);
+        layout(toggle);
+        TogglePalette red = TogglePalette.obtain(context, toggle);
+        assertNotSame(blue, red);
+        assertWithin("drawable loads of new palettes", 2 * NEW_PALETTE_DRAWABLE_LOADS, metrics.getDrawableLoadCount());
+
+        metrics.reset();
+        toggle.setColors(Color.BLUE, Color.WHITE);
+        layout(toggle);
+        assertSame(blue, TogglePalette.obtain(context, toggle));
+        assertWithin("drawable loads", SET_COLORS_DRAWABLE_LOADS, metrics.getDrawableLoadCount());
+        assertWithin("inflations", SET_COLORS_INFLATIONS, metrics.getInflationCount());
+        assertWithin("state applications", SET_COLORS_STATE_APPLICATIONS, metrics.getStateApplicationCount());
+    }
+
+    @Test
+    public void iconsAreLoadedOnce() {
+        int[] icons = new int[]{R.drawable.button_pressed, R.drawable.button_pressed, R.drawable.button_pressed};
+        MultiStateToggleButton first = newToggle();
+        first.setElements(TEXTS, null, null);
+        layout(first);
+
+        metrics.reset();
+        first.setElements(TEXTS, icons, null);
+        layout(first);
+        MultiStateToggleButton second = newToggle();
+        second.setElements(TEXTS, icons, null);
+        layout(second);
+        assertWithin("drawable loads", SHARED_ICON_DRAWABLE_LOADS, metrics.getDrawableLoadCount());
+    }
+
+    @Test
+    public void restoreOnlyTouchesDifferingButtons() {
+        MultiStateToggleButton saved = newToggle();
+        saved.setElements(TEXTS, null, new boolean[]{false, true, false});
+        Parcelable state = saved.onSaveInstanceState();
+
+        MultiStateToggleButton restored = newToggle();
+        restored.setElements(TEXTS, null, new boolean[]{true, false, false});
+        layout(restored);
+        restored.setOnValueChangedListener(new ToggleButton.OnValueChangedListener() {
+            @Override
+            public void onValueChanged(int value) {
+            }
+        });
+
+        metrics.reset();
+        restored.onRestoreInstanceState(state);
+        assertArrayEquals(saved.getStates(), restored.getStates());
+        assertWithin("state applications", RESTORE_STATE_APPLICATIONS, metrics.getStateApplicationCount());
+
+        metrics.reset();
+        restored.onRestoreInstanceState(state);
+        assertWithin("state applications when already restored", UNCHANGED_STATE_APPLICATIONS, metrics.getStateApplicationCount());
+        assertWithin("listener dispatches", UNCHANGED_LISTENER_DISPATCHES, metrics.getListenerDispatchCount());
+    }
+
+    @Test
+    public void readsDontAllocate() {
+        final MultiStateToggleButton toggle = newToggle();
+        toggle.setElements(TEXTS, null, new boolean[]{true, false, true});
+        layout(toggle);
+        final boolean[] states = new boolean[TEXTS.length];
+
+        long bytes = Allocations.bytesPerRun(new Runnable() {
+            @Override
+            public void run() {
+                toggle.getStates(states);
+                toggle.getSelectionMask();
+                toggle.isSelectionEqual(states);
+                toggle.getValue();
+            }
+        }, 1000);
+        assertWithin("bytes per read", READ_BYTES, bytes);
+    }
+
+    @Test
+    public void changesDontAllocatePerElement() {
+        final MultiStateToggleButton toggle = newToggle();
+        toggle.setScrollable(true);
+        toggle.setElements(new CharSequence[MANY_ELEMENTS]);
+        layout(toggle);
+
+        long bytes = Allocations.bytesPerRun(new Runnable() {
+
+            private int position;
+
+            @Override
+            public void run() {
+                position = (position + 1) % MANY_ELEMENTS;
+                toggle.setValue(position);
+            }
+        }, 1000);
+        assertWithin("bytes per setValue", SET_VALUE_BYTES, bytes);
+
+        // Only positions out of view flip, the buttons in view are covered by the state application budgets
+        final boolean[] even = new boolean[MANY_ELEMENTS];
+        final boolean[] odd = new boolean[MANY_ELEMENTS];
+        for (int i = MANY_ELEMENTS / 2; i < MANY_ELEMENTS; i++) {
+            even[i] = i % 2 == 0;
+            odd[i] = !even[i];
+        }
+        bytes = Allocations.bytesPerRun(new Runnable() {
+
+            private boolean flip;
+
+            @Override
+            public void run() {
+                flip = !flip;
+                toggle.setStates(flip ? odd : even);
+            }
+        }, 100);
+        assertWithin("bytes per setStates", SET_STATES_BYTES, bytes);
+    }
+
+    @Test
+    public void setElementsDoesntAllocatePerElement() {
+        final MultiStateToggleButton toggle = newToggle();
+        toggle.setScrollable(true);
+        // Equal labels, so that rebinding doesn't set any text on the buttons in view
+        final CharSequence[] first = new CharSequence[MANY_ELEMENTS];
+        final CharSequence[] second = new CharSequence[MANY_ELEMENTS];
+        for (int i = 0; i < MANY_ELEMENTS; i++) {
+            first[i] = second[i] = TEXTS[i % TEXTS.length];
+        }
+        toggle.setElements(first);
+        layout(toggle);
+        final boolean[] selected = new boolean[MANY_ELEMENTS];
+
+        metrics.reset();
+        long bytes = Allocations.bytesPerRun(new Runnable() {
+
+            private boolean flip;
+
+            @Override
+            public void run() {
+                flip = !flip;
+                toggle.setElements(flip ? second : first, null, selected);
+                relayout(toggle);
+            }
+        }, 100);
+        assertWithin("bytes per setElements", SET_ELEMENTS_BYTES, bytes);
+        assertWithin("inflations", REBIND_INFLATIONS, metrics.getInflationCount());
+    }
+
+    @Test
+    public void setColorsDoesntAllocatePalettes() {
+        final MultiStateToggleButton toggle = newToggle();
+        toggle.setElements(TEXTS);
+        layout(toggle);
+
+        metrics.reset();
+        long bytes = Allocations.bytesPerRun(new Runnable() {
+
+            private boolean flip;
+
+            @Override
+            public void run() {
+                flip = !flip;
+                toggle.setColors(flip ? Color.RED : Color.BLUE, Color.WHITE);
+            }
+        }, 100);
+        assertWithin("bytes per setColors", TEXTS.length * SET_COLORS_BYTES_PER_BUTTON, bytes);
+        assertWithin("inflations", SET_COLORS_INFLATIONS, metrics.getInflationCount());
+    }
+
+    @Test
+    public void saveRestoreDoesntAllocatePerButton() {
+        final MultiStateToggleButton toggle = newToggle();
+        toggle.setScrollable(true);
+        toggle.setElements(new CharSequence[MANY_ELEMENTS]);
+        layout(toggle);
+
+        metrics.reset();
+        long bytes = Allocations.bytesPerRun(new Runnable() {
+
+            private int position;
+
+            @Override
+            public void run() {
+                Parcelable state = toggle.onSaveInstanceState();
+                // Restores the selection saved before this change
+                position = (position + 1) % MANY_ELEMENTS;
+                toggle.setValue(position);
+                toggle.onRestoreInstanceState(state);
+            }
+        }, 100);
+        assertWithin("bytes per save and restore", SAVE_RESTORE_BYTES, bytes);
+        assertWithin("inflations", RESTORE_INFLATIONS, metrics.getInflationCount());
+    }
+}